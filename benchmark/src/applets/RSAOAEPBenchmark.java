@@ -0,0 +1,149 @@
+package applets;
+
+import java.util.concurrent.TimeUnit;
+import javacard.framework.JCSystem;
+import javacard.security.KeyBuilder;
+import javacard.security.KeyPair;
+import javacard.security.MessageDigest;
+import javacard.security.RSAPrivateCrtKey;
+import javacard.security.RSAPublicKey;
+import javacard.security.RandomData;
+import javacardx.crypto.Cipher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of RSAOAEP encode, decode and MGF1 executed directly on jcardsim (no APDU
+ * transport). Parameters mirror TestRSAOEAPSingle: payload length, key size, engine
+ * layout and offset of data inside the working arrays. Run with "-prof gc" (see
+ * jmhbuild.xml) to report allocation rate.
+ * Note: jcardsim does not reset RSA engine after doFinal, so every operation includes
+ * init() of the OAEP engine as in TestSWAlgsApplet running in simulator.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RSAOAEPBenchmark {
+
+    @State(Scope.Thread)
+    public static class OAEPState {
+        @Param({"2048", "4096"})
+        public short keyLength;
+
+        @Param({"PKCS1", "NOPAD"})
+        public String engine;
+
+        @Param({"0", "10"})
+        public short offset;
+
+        RSAOAEP oaep;
+        RSAPublicKey pubKey;
+        RSAPrivateCrtKey privKey;
+        MessageDigest hash;
+        RandomData random;
+        byte[] work;
+        byte[] out;
+        short emLength;
+
+        void setupEngine() {
+            KeyPair keyPair = new KeyPair(
+                    (RSAPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PUBLIC, keyLength, false),
+                    (RSAPrivateCrtKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_CRT_PRIVATE, keyLength, false));
+            keyPair.genKeyPair();
+            pubKey = (RSAPublicKey) keyPair.getPublic();
+            privKey = (RSAPrivateCrtKey) keyPair.getPrivate();
+
+            hash = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+            random = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
+            byte[] scratch = JCSystem.makeTransientByteArray((short) (hash.getLength() + 4), JCSystem.CLEAR_ON_RESET);
+            boolean nopad = engine.equals("NOPAD");
+            Cipher rsaEngine = Cipher.getInstance(nopad ? Cipher.ALG_RSA_NOPAD : Cipher.ALG_RSA_PKCS1, false);
+            oaep = RSAOAEP.getInstance(rsaEngine, nopad, hash, random, null, scratch);
+
+            short keyBytes = (short) (keyLength / 8);
+            emLength = nopad ? (short) (keyBytes - 1) : (short) (keyBytes - 11);
+            work = JCSystem.makeTransientByteArray((short) (keyBytes + offset), JCSystem.CLEAR_ON_RESET);
+            out = JCSystem.makeTransientByteArray((short) (keyBytes + offset), JCSystem.CLEAR_ON_RESET);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class EncodeState extends OAEPState {
+        @Param({"0", "17", "180"})
+        public short payloadLength;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            setupEngine();
+            random.generateData(work, offset, payloadLength);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class DecodeState extends OAEPState {
+        // empty message is rejected by decodeDoFinal, shortest decodable payload is used instead of 0
+        @Param({"1", "17", "180"})
+        public short payloadLength;
+
+        short wrapLength;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            setupEngine();
+            random.generateData(out, offset, payloadLength);
+            oaep.init(pubKey, Cipher.MODE_ENCRYPT);
+            wrapLength = oaep.encodeDoFinal(out, offset, payloadLength, work, offset);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class MaskState extends OAEPState {
+        @Setup(Level.Trial)
+        public void setup() {
+            setupEngine();
+            random.generateData(work, offset, emLength);
+        }
+    }
+
+    @Benchmark
+    public short encode(EncodeState state) {
+        state.oaep.init(state.pubKey, Cipher.MODE_ENCRYPT);
+        return state.oaep.encodeDoFinal(state.work, state.offset, state.payloadLength, state.out, state.offset);
+    }
+
+    @Benchmark
+    public short decode(DecodeState state) {
+        state.oaep.init(state.privKey, Cipher.MODE_DECRYPT);
+        return state.oaep.decodeDoFinal(state.work, state.offset, state.wrapLength, state.out, state.offset);
+    }
+
+    /**
+     * Mask of DB generated from seed (short mask source, hash length).
+     */
+    @Benchmark
+    public short mgf1SeedToDB(MaskState state) {
+        short hashLen = state.hash.getLength();
+        return state.oaep.maskGeneratorFunction1(state.work, state.offset, hashLen, (short) (state.emLength - hashLen), state.out, state.offset);
+    }
+
+    /**
+     * Mask of seed generated from masked DB (long mask source).
+     */
+    @Benchmark
+    public short mgf1DBToSeed(MaskState state) {
+        short hashLen = state.hash.getLength();
+        return state.oaep.maskGeneratorFunction1(state.work, state.offset, (short) (state.emLength - hashLen), hashLen, state.out, state.offset);
+    }
+}
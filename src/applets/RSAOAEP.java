@@ -18,7 +18,7 @@ USAGE:
   RSAOAEP oaep = new RSAOAEP();
   // initialize cipher engine (e.g., RSACipher), hash engine (e.g., Sha1), optional encoding parameters (can be null, if not used),
   // NOTE: external_array_for_internal_work_can_be_null ... array used for internal computations (if null then array will be allocated interally) - should be RAM array for reasonable speed. you can reuse existing array.
-  // if you will use let array to be allocated internally, set MAX_MASK_ARRAY_LENGTH to proper value (depending on cipher modulus - 200B is fine for RSA 2048 with SHA2-512)
+  // only hash length + 4 bytes are required (36B for SHA-256), encoding and decoding is performed directly in the output array
   oaep.init(false, cipher_engine, hash_engine, optional_encoding_parameters_can_be_null, external_array_for_internal_work_can_be_null);
 
   // decode block of data from OAEP encoding
@@ -39,32 +39,52 @@ import java.util.Random;
  *
  * @author Petr Svenda
  */
-// TODO:
-// 1. Add function for temporary storage of internal state of Sha-512 to bypass repeated processing of the same data
-// 2. Remove necessity for separate array for mask source data storage in decode() - is it possible?
-// 3. Allow to set external RAM array
-
 public class RSAOAEP extends Cipher {
     public static final short OAEP_DECODE_FAIL = (short) 0x6003;
     public static final short ORACLE_PADDING_ATTACK_POSSIBLE = (short) 0x6004;
-    
-    private static boolean RSA_NOPAD_USED = false;
-    private final static short MAX_MASK_ARRAY_LENGTH = (short) 260; // 220 is maximum value required if RSA2048bits OAEP is used
+
+    // LAYOUT OF OPTIONAL STATISTICS ARRAY: GROUPS OF 4B (BIG ENDIAN) COUNTERS
+    public static final short STATS_ENCODE = (short) 0;         // counters of encodeDoFinal
+    public static final short STATS_DECODE = (short) 28;        // counters of decodeDoFinal
+    public static final short STATS_PRECOMPUTE = (short) 56;    // counters of refillPrecomputedPool
+    public static final short STATS_HASH = (short) 84;          // hash compression function calls, counter at 4 * MessageDigest.ALG_*
+    public static final short STATS_LENGTH = (short) 112;       // STATS_HASH + counters for ALG_SHA (1) .. ALG_SHA_512 (6)
+    public static final short STAT_RSA_OPS = (short) 0;         // RSA operations
+    public static final short STAT_HASH_BLOCKS = (short) 4;     // MGF1 counter blocks hashed
+    public static final short STAT_HASH_BYTES = (short) 8;      // bytes hashed by MGF1
+    public static final short STAT_COPY_BYTES = (short) 12;     // bytes copied, filled or xored
+    public static final short STAT_RSA_BYTES = (short) 16;      // modulus bytes of RSA operations (sum over operations)
+    public static final short STAT_PERSISTENT_BYTES = (short) 20; // part of STAT_COPY_BYTES written into persistent memory
+    public static final short STAT_LOOP_ITERATIONS = (short) 24;  // iterations of bytecode loops over data (xor, search)
     
     Cipher              rsaEngine;      // underlaying RSA engine
+    boolean             rsaNopadUsed;   // rsaEngine is raw RSA (ALG_RSA_NOPAD), otherwise ALG_RSA_PKCS1
+    boolean             nativeOaepUsed; // rsaEngine is ALG_RSA_PKCS1_OAEP, encoding is done by the card
+    boolean             rsaNopadNoLeadingByte; // raw RSA engine accepts only modulus length - 1 bytes (leading zero dropped)
+    short               modulusLength;  // length of RSA modulus in bytes
     RandomData          random;         // random data generator
     short               blockLength;    // internal length of data usable for rsaEngine
+    short               emLength;       // length of OAEP encoded message (blockLength without leading zero byte for raw RSA)
     short               maxInputLength; // maximum length of user supplied data (smaller than blockLength due to seed and hash of encodingParams)
-    byte[]              maskSource;     // auxalarity array used to performed OAEP computation
     byte[]              defHash;        // hash of optional encodingParams provided by user
 
+    // optional pool of precomputed (seed, dbMask) pairs used by encodeDoFinal
+    private final static byte POOL_COUNT = (byte) 0;          // number of ready entries
+    private final static byte POOL_EM_LENGTH = (byte) 1;      // emLength the entries were generated for
+    private byte[]      pool;           // entries of emLength bytes: seed || MGF1(seed)
+    private short[]     poolState;      // same memory type as pool, so count is cleared together with entries
+    private boolean     poolPersistent; // pool (and poolState) is in persistent memory
+
     // used by maskGeneratorFunction1 internally
     private byte[] tempHash;            
-    private byte[] C;
+    private byte[] mgfInput;            // mask source (if short) followed by 4B counter
     private MessageDigest hash;
     private MessageDigest mgf1Hash;
     private byte mode;
 
+    private byte[] stats;               // optional operation counters (null if not collected)
+    private short[] statsGroup;         // [0] group of counters for currently executed operation (transient, null if not collected)
+
     public byte getAlgorithm() {
         return Cipher.ALG_RSA_PKCS1_OAEP;
     }
@@ -87,11 +107,17 @@ public class RSAOAEP extends Cipher {
         }
         short keySize = rsaKey.getSize();
         blockLength = (short) (keySize / 8);    // length of underlaying RSA
-        if (RSA_NOPAD_USED == false) {
-            blockLength -= 11;                      // overhead for PKCS1 padding
+        modulusLength = blockLength;
+        emLength = blockLength;
+        if (rsaNopadUsed || nativeOaepUsed) {
+            emLength -= 1;                      // leading zero byte keeps encoded message smaller than modulus
+        }
+        else {
+            blockLength -= 11;                  // overhead for PKCS1 padding
+            emLength = blockLength;
         }
         
-        maxInputLength = blockLength;           // length of underlaying RSA
+        maxInputLength = emLength;              // length of OAEP encoded message
         maxInputLength -= hash.getLength();     // hash of encoding parameters
         maxInputLength -= hash.getLength();     // seed
         maxInputLength -= 1;                    // 1B sentinel
@@ -102,37 +128,86 @@ public class RSAOAEP extends Cipher {
             MessageDigest hash,
             RandomData random,
             byte[] encodingParams,
-            byte[] externalMaskSourceArray) {
-        return getInstance(rsaEngine, false, hash, random, encodingParams, externalMaskSourceArray);
+            byte[] externalScratchArray) {
+        return getInstance(rsaEngine, false, hash, random, encodingParams, externalScratchArray);
     }    
+    /**
+     * Kept for compatibility, getInstance accepts both ALG_RSA_PKCS1 and ALG_RSA_NOPAD engines.
+     */
     public static RSAOAEP getInstanceAnyEngine(
             Cipher rsaEngine,
             MessageDigest hash,
             RandomData random,
             byte[] encodingParams,
-            byte[] externalMaskSourceArray) {
-        return getInstance(rsaEngine, false, hash, random, encodingParams, externalMaskSourceArray);
+            byte[] externalScratchArray) {
+        return getInstance(rsaEngine, false, hash, random, encodingParams, externalScratchArray);
+    }
+    /**
+     * Returns RSAOAEP over the best newly allocated engine supported by card: native 
+     * ALG_RSA_PKCS1_OAEP (only probed for SHA-1 and null encodingParams, the only parameters 
+     * of native engine), ALG_RSA_NOPAD (standard OAEP by software) or ALG_RSA_PKCS1 (OAEP 
+     * block wrapped into PKCS1 padding). Chosen engine is returned by getEngineAlgorithm().
+     */
+    public static RSAOAEP getInstancePreferNative(
+            MessageDigest hash,
+            RandomData random,
+            byte[] encodingParams,
+            byte[] externalScratchArray) {
+        Cipher rsaEngine = null;
+        if ((hash.getAlgorithm() == MessageDigest.ALG_SHA) && (encodingParams == null)) {
+            rsaEngine = getEngineIfSupported(Cipher.ALG_RSA_PKCS1_OAEP);
+        }
+        if (rsaEngine == null) {
+            rsaEngine = getEngineIfSupported(Cipher.ALG_RSA_NOPAD);
+        }
+        if (rsaEngine == null) {
+            rsaEngine = Cipher.getInstance(Cipher.ALG_RSA_PKCS1, false);
+        }
+        return getInstance(rsaEngine, false, hash, random, encodingParams, externalScratchArray);
     }
+
+    // null if card does not support the algorithm
+    private static Cipher getEngineIfSupported(byte algorithm) {
+        try {
+            return Cipher.getInstance(algorithm, false);
+        }
+        catch (CryptoException e) {
+            if (e.getReason() != CryptoException.NO_SUCH_ALGORITHM) {
+                throw e;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return algorithm of underlaying RSA engine (ALG_RSA_PKCS1_OAEP, ALG_RSA_NOPAD or ALG_RSA_PKCS1)
+     */
+    public byte getEngineAlgorithm() {
+        return rsaEngine.getAlgorithm();
+    }
+
     public static RSAOAEP getInstance(
             Cipher rsaEngine,
             boolean bPreventPaddingOracle,
             MessageDigest hash,
             RandomData random,
             byte[] encodingParams,
-            byte[] externalMaskSourceArray) {
+            byte[] externalScratchArray) {
 
         RSAOAEP newInst = new RSAOAEP();
         
-        // For now, prevent other engines than PKCS1
-        if (rsaEngine.getAlgorithm() != Cipher.ALG_RSA_PKCS1) {
+        // Only PKCS1 (OAEP block is wrapped into PKCS1 v1.5 padding), raw RSA (standard OAEP) 
+        // and native OAEP (encoding is left to the engine) are supported
+        byte rsaAlg = rsaEngine.getAlgorithm();
+        if ((rsaAlg != Cipher.ALG_RSA_PKCS1) && (rsaAlg != Cipher.ALG_RSA_NOPAD) && (rsaAlg != Cipher.ALG_RSA_PKCS1_OAEP)) {
             ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
         }
         
-        
         // Chcek for engine with potential padding oracle attack
-        RSA_NOPAD_USED = (rsaEngine.getAlgorithm() != Cipher.ALG_RSA_NOPAD) ? false : true;
+        newInst.rsaNopadUsed = (rsaAlg == Cipher.ALG_RSA_NOPAD);
+        newInst.nativeOaepUsed = (rsaAlg == Cipher.ALG_RSA_PKCS1_OAEP);
         
-        if ((RSA_NOPAD_USED == false) && bPreventPaddingOracle) {
+        if ((rsaAlg == Cipher.ALG_RSA_PKCS1) && bPreventPaddingOracle) {
             ISOException.throwIt(ORACLE_PADDING_ATTACK_POSSIBLE);
         }
         
@@ -141,18 +216,17 @@ public class RSAOAEP extends Cipher {
         newInst.random = random;
         newInst.mgf1Hash = hash;
         newInst.tempHash = JCSystem.makeTransientByteArray(hash.getLength(), JCSystem.CLEAR_ON_RESET);
-        newInst.defHash = JCSystem.makeTransientByteArray(hash.getLength(), JCSystem.CLEAR_ON_RESET);
-        newInst.C = JCSystem.makeTransientByteArray((byte) 4, JCSystem.CLEAR_ON_RESET);
+        newInst.defHash = new byte[hash.getLength()];  // computed only once here, must survive card reset
 
-        if (externalMaskSourceArray == null) {
-            newInst.maskSource = JCSystem.makeTransientByteArray(MAX_MASK_ARRAY_LENGTH, JCSystem.CLEAR_ON_RESET);
+        if (externalScratchArray == null) {
+            newInst.mgfInput = JCSystem.makeTransientByteArray((short) (hash.getLength() + 4), JCSystem.CLEAR_ON_RESET);
         }
         else {
-            // provided array must have at least required length
-            if ((short) externalMaskSourceArray.length < MAX_MASK_ARRAY_LENGTH) {
+            // provided array must have at least required length (hash length + 4B counter)
+            if ((short) externalScratchArray.length < (short) (hash.getLength() + 4)) {
                 ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
             }
-            newInst.maskSource = externalMaskSourceArray;
+            newInst.mgfInput = externalScratchArray;
         }
 
         if (encodingParams != null) {
@@ -191,6 +265,133 @@ public class RSAOAEP extends Cipher {
         return (short) -1;
     }
 
+    /**
+     * Sets array where counters of performed work are accumulated (STATS_LENGTH bytes, 
+     * transient array recommended). Counters are only added to, caller resets them by 
+     * zeroing the array. Pass null to disable collection.
+     * @param statsArray array for counters or null
+     */
+    public void setStatistics(byte[] statsArray) {
+        stats = statsArray;
+        if ((statsArray != null) && (statsGroup == null)) {
+            statsGroup = JCSystem.makeTransientShortArray((short) 1, JCSystem.CLEAR_ON_RESET);
+        }
+    }
+
+    // no write at all when statistics are off
+    private void setStatsGroup(short group) {
+        if (stats != null) {
+            statsGroup[0] = group;
+        }
+    }
+
+    private void addStat(short counter, short value) {
+        if (stats != null) {
+            addStatistics(stats, (short) (statsGroup[0] + counter), value);
+        }
+    }
+
+    /**
+     * Adds value to 4B counter at offset off of statistics array. Applet can use it to 
+     * account own work belonging to the same command (e.g., persistent copy of result).
+     * @param statsArray array set by setStatistics() or null (nothing is counted)
+     */
+    public static void addStatistics(byte[] statsArray, short off, short value) {
+        if (statsArray == null) {
+            return;
+        }
+        short low = Util.getShort(statsArray, (short) (off + 2));
+        short newLow = (short) (low + value);
+        Util.setShort(statsArray, (short) (off + 2), newLow);
+        // carry if unsigned low part overflowed
+        if ((short) (newLow ^ (short) 0x8000) < (short) (low ^ (short) 0x8000)) {
+            Util.setShort(statsArray, off, (short) (Util.getShort(statsArray, off) + 1));
+        }
+    }
+
+    // persistent writes are counted in both STAT_COPY_BYTES and STAT_PERSISTENT_BYTES
+    private void addPoolWriteStat(short value) {
+        addStat(STAT_COPY_BYTES, value);
+        if (poolPersistent) {
+            addStat(STAT_PERSISTENT_BYTES, value);
+        }
+    }
+
+    /**
+     * Sets array used to store precomputed (seed, dbMask) pairs. Seed and dbMask
+     * do not depend on the message, so encodeDoFinal only performs xor, short MGF1
+     * pass for seed mask and RSA operation when precomputed entry is available.
+     * Array can be persistent or transient, each entry takes emLength bytes. Transient
+     * array is preferred: persistent pool costs EEPROM write on every pooled encode
+     * and keeps secret seeds in EEPROM.
+     * Pass null to disable the pool.
+     * @param poolArray array for pool entries or null
+     */
+    public void setPrecomputedPool(byte[] poolArray) {
+        pool = poolArray;
+        poolState = null;
+        poolPersistent = false;
+        if (poolArray != null) {
+            byte memType = JCSystem.isTransient(poolArray);
+            poolPersistent = (memType == JCSystem.NOT_A_TRANSIENT_OBJECT);
+            if (poolPersistent) {
+                poolState = new short[2];
+            } else {
+                poolState = JCSystem.makeTransientShortArray((short) 2, memType);
+            }
+        }
+    }
+
+    /**
+     * Generates up to maxNewEntries precomputed entries for emLength of currently
+     * initialized key. Intended to be called outside latency critical operations.
+     * @param maxNewEntries maximum number of entries to generate in this call
+     * @return number of entries ready in the pool
+     */
+    public short refillPrecomputedPool(short maxNewEntries) {
+        if ((pool == null) || nativeOaepUsed) {
+            return 0;
+        }
+        if (emLength == 0) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        if (poolState[POOL_EM_LENGTH] != emLength) {
+            // entries generated for different key length are useless
+            poolState[POOL_COUNT] = 0;
+            poolState[POOL_EM_LENGTH] = emLength;
+        }
+
+        short hashLen = (short) defHash.length;
+        short capacity = (short) (pool.length / emLength);
+        setStatsGroup(STATS_PRECOMPUTE);
+        while ((maxNewEntries > 0) && (poolState[POOL_COUNT] < capacity)) {
+            short entryOff = (short) (poolState[POOL_COUNT] * emLength);
+            // dbMask is MGF1(seed) xored into all zeroes block
+            random.generateData(pool, entryOff, hashLen);
+            Util.arrayFillNonAtomic(pool, (short) (entryOff + hashLen), (short) (emLength - hashLen), (byte) 0);
+            addPoolWriteStat((short) (emLength - hashLen));
+            maskGeneratorFunction1(pool, entryOff, hashLen, (short) (emLength - hashLen), pool, (short) (entryOff + hashLen));
+            if (poolPersistent) {
+                // MGF1 counts xor into dbMask only as copied bytes
+                addStat(STAT_PERSISTENT_BYTES, (short) (emLength - hashLen));
+            }
+            poolState[POOL_COUNT]++;
+            addPoolWriteStat((short) 2);
+            maxNewEntries--;
+        }
+        return poolState[POOL_COUNT];
+    }
+
+    /**
+     * @return number of precomputed entries ready for current emLength
+     */
+    public short getPrecomputedPoolCount() {
+        if ((pool == null) || (poolState[POOL_EM_LENGTH] != emLength)) {
+            return 0;
+        }
+        return poolState[POOL_COUNT];
+    }
+
     public short encodeDoFinal(
             byte[] in,
             short inOff,
@@ -201,38 +402,99 @@ public class RSAOAEP extends Cipher {
         if (inLen > maxInputLength) {
             ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
+        if (nativeOaepUsed) {
+            // empty message is rejected as software decoding would reject it
+            if (inLen == 0) {
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+            setStatsGroup(STATS_ENCODE);
+            addStat(STAT_RSA_OPS, (short) 1);
+            addStat(STAT_RSA_BYTES, modulusLength);
+            return rsaEngine.doFinal(in, inOff, inLen, out, outOff);
+        }
+
+        short hashLen = (short) defHash.length;
+        short emOff = (short) (outOff + (short) (blockLength - emLength));  // start of OAEP encoded message inside out
+        short msgOff = (short) (emOff + (short) (emLength - inLen));
+
+        setStatsGroup(STATS_ENCODE);
+
+        // copy in the message first (in and out may overlap) - last part of block is set to input data
+        Util.arrayCopyNonAtomic(in, inOff, out, msgOff, inLen);
+        addStat(STAT_COPY_BYTES, inLen);
+        if (rsaNopadUsed) {
+            out[outOff] = 0;
+        }
 
-        Util.arrayFillNonAtomic(maskSource, (short) 0, blockLength, (byte) 0);
+        if (getPrecomputedPoolCount() > 0) {
+            // entry is consumed before use, so it is never used twice even if operation is interrupted
+            poolState[POOL_COUNT]--;
+            addPoolWriteStat((short) 2);
+            short entryOff = (short) (poolState[POOL_COUNT] * emLength);
+            short msgPos = (short) (msgOff - emOff);
 
-        // copy in the message
-        Util.arrayCopyNonAtomic(in, inOff, maskSource, (short) (blockLength - inLen), inLen); // last part of block are set to input data
+            // mask message in place, then take seed and mask for lHash, PS and sentinel as they are
+            for (short i = 0; i < inLen; i++) {
+                out[(short) (msgOff + i)] ^= pool[(short) (entryOff + (short) (msgPos + i))];
+            }
+            Util.arrayCopyNonAtomic(pool, entryOff, out, emOff, msgPos);
+            for (short i = 0; i < hashLen; i++) {
+                out[(short) (emOff + (short) (hashLen + i))] ^= defHash[i];
+            }
+            out[(short) (msgOff - 1)] ^= 0x01;
+            addStat(STAT_COPY_BYTES, (short) (emLength + hashLen + 1));
+            addStat(STAT_LOOP_ITERATIONS, (short) (inLen + hashLen));
 
-        // add sentinel
-        maskSource[(short) ((short) (blockLength - inLen) - (short) 1)] = 0x01;
+            // mask the seed
+            maskGeneratorFunction1(out, (short) (emOff + hashLen), (short) (emLength - hashLen), hashLen, out, emOff);
+
+            return rsaEncrypt(out, outOff);
+        }
 
-        // as the block is already zeroed - there's no need to add PS (the >= 0 pad of 0)
+        // PS (the >= 0 pad of 0) and sentinel
+        Util.arrayFillNonAtomic(out, (short) (emOff + (short) (2 * hashLen)), (short) (emLength - inLen - (short) (2 * hashLen) - 1), (byte) 0);
+        out[(short) (msgOff - 1)] = 0x01;
 
         // add the hash of the encoding params
-        Util.arrayCopyNonAtomic(defHash, (short) 0, maskSource, (short) defHash.length, (short) defHash.length);
+        Util.arrayCopyNonAtomic(defHash, (short) 0, out, (short) (emOff + hashLen), hashLen);
+        addStat(STAT_COPY_BYTES, (short) (emLength - inLen - hashLen));
 
         // generate random seed
-        random.generateData(maskSource, (short) 0, (short) defHash.length);
+        random.generateData(out, emOff, hashLen);
 
         // mask the message block
-        short maskMsgLen = (short) (blockLength - (short) defHash.length);
-        maskGeneratorFunction1(maskSource, (short) 0, (short) defHash.length, maskMsgLen, maskSource, (short) defHash.length);
+        short maskMsgLen = (short) (emLength - hashLen);
+        maskGeneratorFunction1(out, emOff, hashLen, maskMsgLen, out, (short) (emOff + hashLen));
 
-        // mask the seed.
-        maskMsgLen = (short) (blockLength - defHash.length);
-        // copy intermediate state into output buffer (will be soon xored with produced mask)
-        Util.arrayCopyNonAtomic(maskSource, (short) 0, out, outOff, blockLength);
-        maskGeneratorFunction1(maskSource, (short) defHash.length, maskMsgLen, (short) defHash.length, out, outOff);
+        // mask the seed
+        maskGeneratorFunction1(out, (short) (emOff + hashLen), maskMsgLen, hashLen, out, emOff);
 
-        short outputLength = rsaEngine.doFinal(out, outOff, blockLength, out, outOff);
+        short outputLength = rsaEncrypt(out, outOff);
 
         return outputLength;
     }
 
+    private short rsaEncrypt(byte[] block, short blockOff) {
+        addStat(STAT_RSA_OPS, (short) 1);
+        addStat(STAT_RSA_BYTES, modulusLength);
+        if (rsaNopadUsed) {
+            if (!rsaNopadNoLeadingByte) {
+                try {
+                    return rsaEngine.doFinal(block, blockOff, blockLength, block, blockOff);
+                }
+                catch (CryptoException e) {
+                    // some implementations treat raw RSA input as integer of at most modulus length - 1 bytes 
+                    if (e.getReason() != CryptoException.ILLEGAL_USE) {
+                        throw e;
+                    }
+                    rsaNopadNoLeadingByte = true;
+                }
+            }
+            return rsaEngine.doFinal(block, (short) (blockOff + 1), (short) (blockLength - 1), block, blockOff);
+        }
+        return rsaEngine.doFinal(block, blockOff, blockLength, block, blockOff);
+    }
+
     public short decodeDoFinal(
             byte[] in,
             short inOff,
@@ -240,60 +502,76 @@ public class RSAOAEP extends Cipher {
             byte[] out,
             short outOff) throws ISOException {
 
-
+        short hashLen = (short) defHash.length;
+        setStatsGroup(STATS_DECODE);
+        addStat(STAT_RSA_OPS, (short) 1);
+        addStat(STAT_RSA_BYTES, modulusLength);
+        if (nativeOaepUsed) {
+            // all decoding failures look the same as in software decoding
+            try {
+                return rsaEngine.doFinal(in, inOff, inLen, out, outOff);
+            }
+            catch (CryptoException e) {
+                throw new ISOException(OAEP_DECODE_FAIL);
+            }
+        }
         short decLen = rsaEngine.doFinal(in, inOff, inLen, out, outOff);
+        short emOff = outOff;   // start of OAEP encoded message inside out
+
+        byte leadingByte = 0;
 
         // WE MUST REMOVE TRAILING ZEROES FROM DECRYPTED RESULT
         // IF RSA_PKCS1 IS USED, THAN IT WAS ALREADY PERFORMED
-        // IF RSA_NOPAD IS USED, REMOVE FIRST BYTE
-        if (RSA_NOPAD_USED) {
-            if (out[outOff] != 0) {
-                throw new ISOException(OAEP_DECODE_FAIL);
-            } else {
-                outOff++;
-                decLen--;
+        // IF RSA_NOPAD IS USED, REMOVE FIRST BYTE (CHECKED TOGETHER WITH HASH BELOW, SO BOTH FAILURES LOOK THE SAME)
+        if (rsaNopadUsed) {
+            if (decLen < blockLength) {
+                // some implementations return result as integer with leading zero bytes stripped
+                short shift = (short) (blockLength - decLen);
+                Util.arrayCopyNonAtomic(out, outOff, out, (short) (outOff + shift), decLen);
+                Util.arrayFillNonAtomic(out, outOff, shift, (byte) 0);
+                addStat(STAT_COPY_BYTES, blockLength);
+                decLen = blockLength;
             }
+            leadingByte = out[outOff];
+            emOff++;
+            decLen--;
         }
 
-        if (decLen < (short) ((2 * defHash.length) + 1)) {
+        if (decLen < (short) ((2 * hashLen) + 1)) {
             throw new ISOException(OAEP_DECODE_FAIL);
         }
 
-
         //
-        // unmask the seed.
+        // unmask the seed - mask source is maskedDB which directly follows the seed, no copy is necessary
         //
-        short maskSourceLength = (short) (decLen - (short) defHash.length);
-        Util.arrayCopyNonAtomic(out, (short) (outOff + defHash.length), maskSource, (short) 0, maskSourceLength);
-        maskGeneratorFunction1(maskSource, (short) 0, maskSourceLength, (short) defHash.length, out, outOff);
+        maskGeneratorFunction1(out, (short) (emOff + hashLen), (short) (decLen - hashLen), hashLen, out, emOff);
         // out now contains message with seed masked out
 
         //
-        // unmask the message block.
+        // unmask the message block
         //
-        maskSourceLength = (short) defHash.length;
-        Util.arrayCopyNonAtomic(out, outOff, maskSource, (short) 0, maskSourceLength);
-        maskGeneratorFunction1(maskSource, (short) 0, maskSourceLength, (short) (decLen - defHash.length), out, (short) (outOff + defHash.length));
+        maskGeneratorFunction1(out, emOff, hashLen, (short) (decLen - hashLen), out, (short) (emOff + hashLen));
         // out now contains ummasked message and hash of encoding params
 
         //
         // check the hash of the encoding params
         //
-        for (short i = 0; i != defHash.length; i++) {
-            if (defHash[i] != out[(short) (outOff + defHash.length + i)]) {
-                throw new ISOException(OAEP_DECODE_FAIL);
-            }
+        byte hashCmp = Util.arrayCompare(defHash, (short) 0, out, (short) (emOff + hashLen), hashLen);
+        if ((byte) (leadingByte | hashCmp) != 0) {
+            throw new ISOException(OAEP_DECODE_FAIL);
         }
 
         //
-        // foutd the data block
+        // find the data block
         //
+        short emEnd = (short) (emOff + decLen);
         short start;
-        for (start = (short) (outOff + 2 * defHash.length); start < (short) (outOff + decLen); start++) {
-            if (out[start] == 1 || out[start] != 0) break;
+        for (start = (short) (emOff + (short) (2 * hashLen)); start < emEnd; start++) {
+            if (out[start] != 0) break;
         }
+        addStat(STAT_LOOP_ITERATIONS, (short) (start - (short) (emOff + (short) (2 * hashLen))));
 
-        if (start >= (short) (outOff + decLen - 1)) throw new ISOException(OAEP_DECODE_FAIL);
+        if (start >= (short) (emEnd - 1)) throw new ISOException(OAEP_DECODE_FAIL);
         if (out[start] != 1) throw new ISOException(OAEP_DECODE_FAIL);
 
         start++;
@@ -301,65 +579,139 @@ public class RSAOAEP extends Cipher {
         //
         // extract the data block
         //
-        short outputLength = (short) (decLen - (short) (start - outOff));
-        start -= outOff;
+        short outputLength = (short) (emEnd - start);
+        Util.arrayCopyNonAtomic(out, start, out, outOff, outputLength);
+        addStat(STAT_COPY_BYTES, outputLength);
 
-        if (RSA_NOPAD_USED) {
-            for (short i = outOff; i < (short) (outOff + outputLength); i++) {
-                out[(short) (i - 1)] = out[(short) (start + i)];
+        return outputLength;
+    }
+
+    /**
+     * Decodes OAEP block carrying symmetric key and sets the key directly into AESKey or DESKey. 
+     * Recovered key value is present only in provided scratch array (which must be able to hold 
+     * RSA result, i.e., key size / 8 bytes) and is cleared before return, also on failure.
+     * @param key key to set, length of decoded value must correspond to key size
+     * @return length of key value
+     */
+    public short unwrapKey(
+            byte[] in,
+            short inOff,
+            short inLen,
+            byte[] scratch,
+            short scratchOff,
+            Key key) throws ISOException {
+
+        if (mode != MODE_DECRYPT) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        short keyLen = 0;
+        try {
+            keyLen = decodeDoFinal(in, inOff, inLen, scratch, scratchOff);
+            if (keyLen != (short) (key.getSize() / 8)) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
             }
-            outputLength--;
-        } else {
-            for (short i = outOff; i < (short) (outOff + outputLength); i++) {
-                out[i] = out[(short) (start + i)];
+            if (key instanceof AESKey) {
+                ((AESKey) key).setKey(scratch, scratchOff);
+            }
+            else if (key instanceof DESKey) {
+                ((DESKey) key).setKey(scratch, scratchOff);
+            }
+            else {
+                ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
             }
         }
+        catch (ISOException e) {
+            Util.arrayFillNonAtomic(scratch, scratchOff, blockLength, (byte) 0);
+            throw e;
+        }
+        catch (CryptoException e) {
+            Util.arrayFillNonAtomic(scratch, scratchOff, blockLength, (byte) 0);
+            throw e;
+        }
+        Util.arrayFillNonAtomic(scratch, scratchOff, blockLength, (byte) 0);
 
-        return outputLength;
+        return keyLen;
     }
 
-    private short maskGeneratorFunction1(
+    /**
+     * MGF1 mask generation, result is xored into bufferToMask.
+     * Short mask sources (up to one hash length, i.e., the seed) are copied once
+     * into mgfInput together with the counter, so every counter block costs a single
+     * doFinal() over contiguous data instead of repeated update() of Z. Long mask
+     * sources (maskedDB) are expanded into one hash length only by OAEP and are
+     * therefore processed directly from Z.
+     */
+    short maskGeneratorFunction1(
             byte[] Z,
             short zOff,
             short zLen,
             short length,
             byte[] bufferToMask,
             short bufferToMaskOffset) {
-        short counter = 0;
+        short hashLen = (short) tempHash.length;
+        short counterOff = 0;
+        short maskLen;
 
-        hash.reset();
         mgf1Hash.reset();
 
-        // COPY INPUT
-
-        // ASSUMPTION: WE WILL NOT PROCESS MORE THEN 128 BLOCKS
-        C[0] = (byte) 0;
-        C[1] = (byte) 0;
-        C[2] = (byte) 0;
-        C[3] = (byte) -1;
-        do {
-            C[3] = (byte) (C[3] + 1);
-
-            mgf1Hash.update(Z, zOff, zLen);
-            mgf1Hash.doFinal(C, (short) 0, (short) C.length, tempHash, (short) 0);
-
-            // MASK/UNMASK PART OF GIVEN ARRAY
-            for (short i = 0; i < (short) tempHash.length; i++)
-                bufferToMask[(short) (bufferToMaskOffset + i)] ^= tempHash[i];
-            bufferToMaskOffset += (short) (tempHash.length);
+        if (zLen <= hashLen) {
+            // COPY INPUT, COUNTER FOLLOWS IMMEDIATELLY AFTER Z
+            Util.arrayCopyNonAtomic(Z, zOff, mgfInput, (short) 0, zLen);
+            counterOff = zLen;
+            addStat(STAT_COPY_BYTES, zLen);
+        }
+        // ASSUMPTION: WE WILL NOT PROCESS MORE THEN 256 BLOCKS
+        Util.arrayFillNonAtomic(mgfInput, counterOff, (short) 4, (byte) 0);
+        short compressions = 0;
+        short hashStatOff = (short) (STATS_HASH + (short) (4 * mgf1Hash.getAlgorithm()));
+        if ((stats != null) && (hashStatOff < STATS_LENGTH)) {
+            compressions = getHashCompressions((short) (zLen + 4));
         }
-        while (++counter < (short) (length / tempHash.length));
-
-        if ((short) (counter * tempHash.length) < length) {
-            C[3] = (byte) (C[3] + 1);
 
-            mgf1Hash.update(Z, zOff, zLen);
-            mgf1Hash.doFinal(C, (short) 0, (short) C.length, tempHash, (short) 0);
+        while (length > 0) {
+            if (counterOff == 0) {
+                mgf1Hash.update(Z, zOff, zLen);
+            }
+            mgf1Hash.doFinal(mgfInput, (short) 0, (short) (counterOff + 4), tempHash, (short) 0);
+            addStat(STAT_HASH_BLOCKS, (short) 1);
+            addStat(STAT_HASH_BYTES, (short) (zLen + 4));
+            if (compressions != 0) {
+                addStatistics(stats, hashStatOff, compressions);
+            }
 
-            for (short i = 0; i < (short) tempHash.length; i++)
+            // MASK/UNMASK PART OF GIVEN ARRAY (LAST BLOCK MAY BE SHORTER)
+            maskLen = (length < hashLen) ? length : hashLen;
+            for (short i = 0; i < maskLen; i++) {
                 bufferToMask[(short) (bufferToMaskOffset + i)] ^= tempHash[i];
-            bufferToMaskOffset += (short) tempHash.length;
+            }
+            addStat(STAT_COPY_BYTES, maskLen);
+            addStat(STAT_LOOP_ITERATIONS, maskLen);
+            bufferToMaskOffset += maskLen;
+            length -= maskLen;
+
+            mgfInput[(short) (counterOff + 3)]++;
         }
         return (short) 0;
     }
+
+    /**
+     * Returns number of hash compression function calls needed to hash message of 
+     * given length (including padding of the message), or 0 for unknown algorithm.
+     */
+    private short getHashCompressions(short length) {
+        switch (mgf1Hash.getAlgorithm()) {
+            case MessageDigest.ALG_SHA:
+            case MessageDigest.ALG_SHA_256:
+            case MessageDigest.ALG_MD5:
+            case MessageDigest.ALG_RIPEMD160:
+                // 64B blocks, at least 1B padding and 8B length
+                return (short) ((short) (length + 9 + 63) / 64);
+            case MessageDigest.ALG_SHA_384:
+            case MessageDigest.ALG_SHA_512:
+                // 128B blocks, at least 1B padding and 16B length
+                return (short) ((short) (length + 17 + 127) / 128);
+            default:
+                return 0;
+        }
+    }
 }
@@ -6,9 +6,10 @@ package applets;
 
 import javacard.framework.*;
 import javacard.security.*;
+import javacardx.apdu.ExtendedLength;
 import javacardx.crypto.Cipher;
 
-public class TestSWAlgsApplet extends javacard.framework.Applet
+public class TestSWAlgsApplet extends javacard.framework.Applet implements ExtendedLength, MultiSelectable
 {
     boolean         m_isRealCard = false;
     // MAIN INSTRUCTION CLASS
@@ -17,25 +18,115 @@ public class TestSWAlgsApplet extends javacard.framework.Applet
     // INSTRUCTIONS
     final static byte INS_TEST_RSAOAEP          = (byte) 0x5a;
     final static byte INS_TEST_RSAOAEP_PERF     = (byte) 0x5b;
+    final static byte INS_TEST_RSAOAEP_REFILL   = (byte) 0x5d;
+    final static byte INS_TEST_RSAOAEP_BATCH    = (byte) 0x5e;
+    final static byte INS_TEST_RSAOAEP_UNWRAPKEY = (byte) 0x5f;
+    final static byte INS_TEST_ENVELOPE         = (byte) 0x60;
+    final static byte INS_TEST_RSAOAEP_STATS    = (byte) 0x61;
+    final static byte INS_IMPORT_KEY            = (byte) 0x62;
+    final static byte INS_GET_PUBLIC_KEY        = (byte) 0x63;
+    final static byte INS_TEST_PRIMITIVE_PERF   = (byte) 0x64;
+
+    // OPERATIONS OF INS_TEST_PRIMITIVE_PERF (P1)
+    final static byte PERF_HASH                 = (byte) 0x01;  // hash of slot over data of given length
+    final static byte PERF_RSA_PUBLIC           = (byte) 0x02;  // raw RSA with public key of slot
+    final static byte PERF_RSA_PRIVATE          = (byte) 0x03;  // raw RSA with private key of slot
+
+    // PHASES OF ENVELOPE (P1)
+    final static byte ENVELOPE_INIT             = (byte) 0x01;
+    final static byte ENVELOPE_UPDATE           = (byte) 0x02;
+    final static byte ENVELOPE_FINAL            = (byte) 0x03;
+
+    // KEY COMPONENTS OF INS_IMPORT_KEY (P1), KEY_CHUNK_MORE IS SET IF FURTHER CHUNKS OF THE COMPONENT FOLLOW
+    final static byte KEY_MODULUS               = (byte) 0x01;
+    final static byte KEY_PUBLIC_EXPONENT       = (byte) 0x02;
+    final static byte KEY_P                     = (byte) 0x03;
+    final static byte KEY_Q                     = (byte) 0x04;
+    final static byte KEY_DP                    = (byte) 0x05;
+    final static byte KEY_DQ                    = (byte) 0x06;
+    final static byte KEY_PQ                    = (byte) 0x07;
+    final static byte KEY_CHUNK_MORE            = (byte) 0x80;
+    final static byte KEY_ALL_COMPONENTS        = (byte) 0x7F;  // bit (component - 1) set for every imported component
+    // INDEXES INTO m_importState
+    final static byte IMPORT_LENGTH             = (byte) 0;     // length of chunks received so far, 0 if no import pending
+    final static byte IMPORT_COMPONENT          = (byte) 1;
+    final static byte IMPORT_SLOT               = (byte) 2;
+
+    // OAEP LAYOUT OF SLOT ENGINES REPORTED BY INS_GET_PUBLIC_KEY
+    final static byte OAEP_LAYOUT_RAW           = (byte) 0x00;  // standard OAEP over ALG_RSA_NOPAD
+    final static byte OAEP_LAYOUT_PKCS1_WRAPPED = (byte) 0x01;  // OAEP block inside ALG_RSA_PKCS1 padding
+    final static byte OAEP_LAYOUT_NATIVE        = (byte) 0x02;  // standard OAEP by ALG_RSA_PKCS1_OAEP of the card
+
+    // STATE OF KEY SLOT
+    final static byte KEY_EMPTY                 = (byte) 0x00;
+    final static byte KEY_READY                 = (byte) 0x01;
+
+    // FLAGS IN FIRST BYTE OF APPLICATION SPECIFIC INSTALL DATA
+    final static byte INSTALL_LAZY_KEYGEN       = (byte) 0x01;  // generate slot key on first use (or import it)
+    final static byte INSTALL_POOL_MASK         = (byte) 0x0E;  // precomputed OAEP entries per slot (0 = DEFAULT_POOL_ENTRIES)
+    final static byte INSTALL_POOL_SHIFT        = (byte) 1;
+    final static byte INSTALL_BATCH_SHIFT       = (byte) 4;     // bits 4-7: results of one batch command (0 = DEFAULT_BATCH_ITEMS)
+    // OPTIONAL KEY SLOT PARAMETERS FOLLOW FLAGS: [key length in bits (2B)][MessageDigest.ALG_* (1B)] FOR SLOT 0, 1...
+    // (PARAMETERS OF LAST GIVEN SLOT ARE USED FOR REMAINING SLOTS)
+    final static byte  SLOT_PARAMS_LENGTH       = (byte) 3;
+    final static short DEFAULT_KEY_LENGTH       = KeyBuilder.LENGTH_RSA_2048;
+    final static short MIN_KEY_LENGTH           = KeyBuilder.LENGTH_RSA_1024;
+    final static short MAX_KEY_LENGTH           = (short) 4096;
+    final static byte  DEFAULT_HASH             = MessageDigest.ALG_SHA_256;
     
 
-    final static short ARRAY_LENGTH                   = (short) 300;
-    final static byte  AES_BLOCK_LENGTH               = (short) 0x16;
+    final static byte  AES_BLOCK_LENGTH               = (byte) 16;
+    final static short DEFAULT_POOL_ENTRIES           = (short) 1;  // precomputed entries per slot, one key length of RAM each
+    final static short TEST_BASE_OFFSET               = (short) 10; // OAEP self-test runs also at non-zero offset
+    final static byte  NUM_KEY_SLOTS                  = (byte) 2;
+    final static short DEFAULT_BATCH_ITEMS            = (short) 2;  // results of one batch command, largest key length each
+    final static byte  MAX_LOGICAL_CHANNELS           = (byte) 4;   // channels 0-3, 2-bit channel field of proprietary CLA (see getChannel)
 
-    // TEMPORARY ARRAY IN RAM
+    // TEMPORARY ARRAY IN RAM (m_arrayLength BYTES, ENOUGH FOR LARGEST SLOT KEY AT TEST_BASE_OFFSET)
+    private short m_arrayLength = 0;
     private byte m_ramArray[] = null;
     private byte m_ramArray2[] = null;
     // PERSISTENT ARRAY IN EEPROM
     private   byte       m_dataArray[] = null;
+    private   byte       m_batchArray[] = null;     // results of batch command (transient, written per item)
+    private   short      m_batchLength = 0;
+    // POSITION IN INCOMING DATA OF BATCH COMMAND
+    private short m_batchIn[] = null;
+    final static byte BATCH_IN_OFFSET = (byte) 0;
+    final static byte BATCH_IN_AVAILABLE = (byte) 1;
+    // INDEXES INTO m_perfWrap
+    final static byte PERF_WRAP_LENGTH = (byte) 0;
+    final static byte PERF_WRAP_CHANNEL = (byte) 1;
     
     
-    Cipher                  m_rsaEngine = null;
+    Cipher                  m_rsaEngineNopad = null;
     MessageDigest           m_hash  = null;
     RandomData              m_secureRandom = null;
     KeyPair                 m_rsaKeyPair = null;
     RSAPublicKey            m_rsaPubKey = null;
     RSAPrivateCrtKey        m_rsaPrivKey = null;
-    RSAOAEP                 m_rsaOAEP = null;
+    RSAOAEP                 m_rsaOAEPPkcs1 = null;
+    byte[]                  m_oaepScratch = null;   // shared by all RSAOAEP instances
+    byte[]                  m_oaepStats = null;     // work counters shared by all RSAOAEP instances
+    
+    // KEY SLOTS, EACH WITH OWN KEY AND PRE-INITIALIZED OAEP ENGINES (SLOT 0 USES m_rsaKeyPair)
+    // ENGINES USE THE BEST RSA ENGINE OF THE CARD (RSAOAEP.getInstancePreferNative)
+    KeyPair[]               m_slotKeyPair = null;
+    RSAOAEP[]               m_slotEncrypt = null;
+    RSAOAEP[]               m_slotDecrypt = null;
+    boolean[]               m_slotReady = null;     // engines initialized with slot key (cleared on deselect)
+    MessageDigest[]         m_slotHash = null;      // OAEP hash of slot
+    byte[]                  m_slotKeyState = null;  // KEY_EMPTY or KEY_READY
+    byte[]                  m_slotImportMask = null; // components imported into slot since last complete key
+    short[]                 m_importState = null;   // pending chunked import of key component (IMPORT_*)
+
+    // STATE KEPT BETWEEN APDUS, SEPARATE FOR EVERY LOGICAL CHANNEL THE APPLET IS SELECTED ON
+    AESKey[]                m_sessionKey = null;    // session key unwrapped by INS_TEST_RSAOAEP_UNWRAPKEY or envelope
+    Cipher                  m_aesCipher = null;
+    Cipher[]                m_aesCbcCipher = null;  // envelope decryption, chaining state kept between APDUs
+    boolean[]               m_envelopeActive = null;
+    byte[]                  m_perfWrapped = null;   // last output of performance encode (one channel at a time)
+    short[]                 m_perfWrap = null;      // PERF_WRAP_LENGTH (0 if none) and PERF_WRAP_CHANNEL of m_perfWrapped
     
     
     
@@ -48,7 +139,9 @@ public class TestSWAlgsApplet extends javacard.framework.Applet
             // finally shift to Application specific offset
             dataOffset += (short)( 1 + buffer[dataOffset]);
             // go to proprietary data
+            byte appDataLength = buffer[dataOffset];
             dataOffset++;
+            byte installFlags = (appDataLength > 0) ? buffer[dataOffset] : 0;
 
             if (length == 15) {
                 // We have simulator
@@ -58,36 +151,188 @@ public class TestSWAlgsApplet extends javacard.framework.Applet
                 m_isRealCard = true;
             }
             
-            m_ramArray = JCSystem.makeTransientByteArray(ARRAY_LENGTH, JCSystem.CLEAR_ON_RESET);
-            m_ramArray2 = JCSystem.makeTransientByteArray(ARRAY_LENGTH, JCSystem.CLEAR_ON_RESET);
+            // KEY LENGTH AND HASH OF EVERY SLOT, SCRATCH ARRAYS ARE SIZED FOR THE LARGEST ONES
+            m_slotKeyPair = new KeyPair[NUM_KEY_SLOTS];
+            m_slotHash = new MessageDigest[NUM_KEY_SLOTS];
+            short keyLength = DEFAULT_KEY_LENGTH;
+            byte hashAlg = DEFAULT_HASH;
+            short maxKeyBytes = 0;
+            short maxHashLength = 0;
+            for (byte slot = 0; slot < NUM_KEY_SLOTS; slot++) {
+                short paramsOff = (short) (1 + slot * SLOT_PARAMS_LENGTH);
+                if ((short) (paramsOff + SLOT_PARAMS_LENGTH) <= appDataLength) {
+                    keyLength = Util.getShort(buffer, (short) (dataOffset + paramsOff));
+                    hashAlg = buffer[(short) (dataOffset + paramsOff + 2)];
+                }
+                if ((keyLength < MIN_KEY_LENGTH) || (keyLength > MAX_KEY_LENGTH)) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                m_slotHash[slot] = getHashInstance(hashAlg, slot);
+                short keyBytes = (short) (keyLength / 8);
+                short hashLength = m_slotHash[slot].getLength();
+                // OAEP in PKCS1 wrapped block must leave room for at least 1B of data
+                if (getMaxDataLength(keyBytes, hashLength, false) <= 0) {
+                    ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+                }
+                m_slotKeyPair[slot] = createRSAKeyPair(keyLength);
+                maxKeyBytes = (keyBytes > maxKeyBytes) ? keyBytes : maxKeyBytes;
+                maxHashLength = (hashLength > maxHashLength) ? hashLength : maxHashLength;
+            }
+            m_arrayLength = (short) (maxKeyBytes + TEST_BASE_OFFSET);
+
+            m_ramArray = JCSystem.makeTransientByteArray(m_arrayLength, JCSystem.CLEAR_ON_RESET);
+            m_ramArray2 = JCSystem.makeTransientByteArray(m_arrayLength, JCSystem.CLEAR_ON_RESET);
             
-            m_hash = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+            m_hash = m_slotHash[0];
             m_secureRandom = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
-            m_rsaEngine = Cipher.getInstance(Cipher.ALG_RSA_PKCS1, false);
+            m_rsaEngineNopad = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false);
+            m_oaepScratch = JCSystem.makeTransientByteArray((short) (maxHashLength + 4), JCSystem.CLEAR_ON_RESET);
+            m_oaepStats = JCSystem.makeTransientByteArray(RSAOAEP.STATS_LENGTH, JCSystem.CLEAR_ON_RESET);
 
-            if (m_isRealCard == true) {
-                //For real cards: we need new instance when generating completelly new key:
-                m_rsaKeyPair = new KeyPair(KeyPair.ALG_RSA_CRT, KeyBuilder.LENGTH_RSA_2048);
-            } else {
-                // For simulated cards - create KeyPair from two keys
-                m_rsaPubKey = (RSAPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PUBLIC, KeyBuilder.LENGTH_RSA_2048, false);
-                m_rsaPrivKey = (RSAPrivateCrtKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_CRT_PRIVATE, KeyBuilder.LENGTH_RSA_2048, false);
-                m_rsaKeyPair = new KeyPair(m_rsaPubKey, m_rsaPrivKey);
+            m_slotEncrypt = new RSAOAEP[NUM_KEY_SLOTS];
+            m_slotDecrypt = new RSAOAEP[NUM_KEY_SLOTS];
+            m_slotReady = JCSystem.makeTransientBooleanArray(NUM_KEY_SLOTS, JCSystem.CLEAR_ON_DESELECT);
+            m_slotKeyState = new byte[NUM_KEY_SLOTS];
+            m_slotImportMask = new byte[NUM_KEY_SLOTS];
+            m_importState = JCSystem.makeTransientShortArray((short) 3, JCSystem.CLEAR_ON_DESELECT);
+            short poolEntries = (short) ((installFlags & INSTALL_POOL_MASK) >> INSTALL_POOL_SHIFT);
+            if (poolEntries == 0) {
+                poolEntries = DEFAULT_POOL_ENTRIES;
             }
-            
-            m_rsaKeyPair.genKeyPair();
+            for (byte slot = 0; slot < NUM_KEY_SLOTS; slot++) {
+                if ((installFlags & INSTALL_LAZY_KEYGEN) == 0) {
+                    m_slotKeyPair[slot].genKeyPair();
+                    m_slotKeyState[slot] = KEY_READY;
+                }
+                short keyBytes = (short) (m_slotKeyPair[slot].getPublic().getSize() / 8);
+                m_slotEncrypt[slot] = RSAOAEP.getInstancePreferNative(m_slotHash[slot], m_secureRandom, null, m_oaepScratch);
+                // pool is only an optimization, entries may be lost on deselect (native engine encodes by itself)
+                if (m_slotEncrypt[slot].getEngineAlgorithm() != Cipher.ALG_RSA_PKCS1_OAEP) {
+                    m_slotEncrypt[slot].setPrecomputedPool(JCSystem.makeTransientByteArray((short) (poolEntries * keyBytes), JCSystem.CLEAR_ON_DESELECT));
+                }
+                m_slotEncrypt[slot].setStatistics(m_oaepStats);
+                m_slotDecrypt[slot] = RSAOAEP.getInstancePreferNative(m_slotHash[slot], m_secureRandom, null, m_oaepScratch);
+                m_slotDecrypt[slot].setStatistics(m_oaepStats);
+            }
+            m_rsaKeyPair = m_slotKeyPair[0];
             m_rsaPubKey = (RSAPublicKey) m_rsaKeyPair.getPublic();
             m_rsaPrivKey = (RSAPrivateCrtKey) m_rsaKeyPair.getPrivate();
 
-            m_rsaOAEP = RSAOAEP.getInstance(m_rsaEngine, m_hash, m_secureRandom, null, null);
+            m_rsaOAEPPkcs1 = RSAOAEP.getInstance(Cipher.getInstance(Cipher.ALG_RSA_PKCS1, false), m_hash, m_secureRandom, null, m_oaepScratch);
+            m_rsaOAEPPkcs1.setStatistics(m_oaepStats);
             
-            m_dataArray = new byte[ARRAY_LENGTH];
-            Util.arrayFillNonAtomic(m_dataArray, (short) 0, ARRAY_LENGTH, (byte) 0);
+            m_aesCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_ECB_NOPAD, false);
+            m_sessionKey = new AESKey[MAX_LOGICAL_CHANNELS];
+            m_aesCbcCipher = new Cipher[MAX_LOGICAL_CHANNELS];
+            for (byte channel = 0; channel < MAX_LOGICAL_CHANNELS; channel++) {
+                m_sessionKey[channel] = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+                m_aesCbcCipher[channel] = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+            }
+            m_envelopeActive = JCSystem.makeTransientBooleanArray(MAX_LOGICAL_CHANNELS, JCSystem.CLEAR_ON_DESELECT);
+            // written inside timed command, must not cost EEPROM writes
+            m_perfWrapped = JCSystem.makeTransientByteArray(m_arrayLength, JCSystem.CLEAR_ON_DESELECT);
+            m_perfWrap = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_DESELECT);
+
+            short batchItems = (short) ((installFlags >> INSTALL_BATCH_SHIFT) & 0x0F);
+            if (batchItems == 0) {
+                batchItems = DEFAULT_BATCH_ITEMS;
+            }
+            m_batchLength = (short) (batchItems * (short) (2 + maxKeyBytes));
+            m_batchArray = JCSystem.makeTransientByteArray(m_batchLength, JCSystem.CLEAR_ON_DESELECT);
+            m_batchIn = JCSystem.makeTransientShortArray((short) 2, JCSystem.CLEAR_ON_DESELECT);
+
+            m_dataArray = new byte[m_arrayLength];
+            Util.arrayFillNonAtomic(m_dataArray, (short) 0, m_arrayLength, (byte) 0);
         } 
 
         register();
     }
 
+    private KeyPair createRSAKeyPair(short keyLength) {
+        if (m_isRealCard == true) {
+            //For real cards: we need new instance when generating completelly new key:
+            return new KeyPair(KeyPair.ALG_RSA_CRT, keyLength);
+        } else {
+            // For simulated cards - create KeyPair from two keys
+            RSAPublicKey pubKey = (RSAPublicKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PUBLIC, keyLength, false);
+            RSAPrivateCrtKey privKey = (RSAPrivateCrtKey) KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_CRT_PRIVATE, keyLength, false);
+            return new KeyPair(pubKey, privKey);
+        }
+    }
+
+    /**
+     * Returns hash engine of given algorithm, engine is shared with previous slots using the same algorithm.
+     */
+    private MessageDigest getHashInstance(byte algorithm, byte slotCount) {
+        for (byte slot = 0; slot < slotCount; slot++) {
+            if (m_slotHash[slot].getAlgorithm() == algorithm) {
+                return m_slotHash[slot];
+            }
+        }
+        return MessageDigest.getInstance(algorithm, false);
+    }
+
+    /**
+     * Returns maximum length of data for OAEP with given key and hash length 
+     * (OAEP block is wrapped into PKCS1 padding unless nopad is set).
+     */
+    static short getMaxDataLength(short keyBytes, short hashLength, boolean nopad) {
+        short emLength = nopad ? (short) (keyBytes - 1) : (short) (keyBytes - 11);
+        return (short) (emLength - 2 * hashLength - 1);
+    }
+
+    /**
+     * Returns OAEP_LAYOUT_* of key slot engines.
+     */
+    private byte getSlotLayout(byte slot) {
+        byte engine = m_slotEncrypt[slot].getEngineAlgorithm();
+        if (engine == Cipher.ALG_RSA_PKCS1_OAEP) {
+            return OAEP_LAYOUT_NATIVE;
+        }
+        return (engine == Cipher.ALG_RSA_NOPAD) ? OAEP_LAYOUT_RAW : OAEP_LAYOUT_PKCS1_WRAPPED;
+    }
+
+    /**
+     * Returns key slot index given in P2.
+     */
+    private byte getKeySlot(byte[] apduBuffer) {
+        byte slot = apduBuffer[ISO7816.OFFSET_P2];
+        if ((slot < 0) || (slot >= NUM_KEY_SLOTS)) {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        return slot;
+    }
+
+    /**
+     * Returns OAEP engine of key slot for given mode. Engines of the slot are initialized 
+     * with slot key only on first use after select (real cards).
+     */
+    private RSAOAEP getSlotCipher(byte slot, byte mode) {
+        ensureSlotKey(slot);
+        // jcardsim does not reset RSA engine after doFinal, simulated card needs init before every use
+        if (!m_slotReady[slot] || !m_isRealCard) {
+            m_slotEncrypt[slot].init(m_slotKeyPair[slot].getPublic(), Cipher.MODE_ENCRYPT);
+            m_slotDecrypt[slot].init(m_slotKeyPair[slot].getPrivate(), Cipher.MODE_DECRYPT);
+            m_slotReady[slot] = true;
+        }
+        return (mode == Cipher.MODE_ENCRYPT) ? m_slotEncrypt[slot] : m_slotDecrypt[slot];
+    }
+
+    /**
+     * Generates key of slot if it was neither generated during install nor imported.
+     */
+    private void ensureSlotKey(byte slot) {
+        if (m_slotKeyState[slot] != KEY_READY) {
+            if (m_slotImportMask[slot] != 0) {
+                // import of key into this slot is not finished
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            }
+            m_slotKeyPair[slot].genKeyPair();
+            m_slotKeyState[slot] = KEY_READY;
+            m_slotReady[slot] = false;
+        }
+    }
+
     public static void install(byte[] bArray, short bOffset, byte bLength) throws ISOException {
         // applet  instance creation 
         new TestSWAlgsApplet (bArray, bOffset, bLength);
@@ -101,6 +346,33 @@ public class TestSWAlgsApplet extends javacard.framework.Applet
         return;
     }
 
+    public boolean select(boolean appInstAlreadyActive) {
+        return true;
+    }
+
+    /**
+     * Applet stays active on other channels, only state of deselected channel is cleared.
+     */
+    public void deselect(boolean appInstStillActive) {
+        byte channel = JCSystem.getAssignedChannel();
+        if (channel < MAX_LOGICAL_CHANNELS) {
+            m_envelopeActive[channel] = false;
+            m_sessionKey[channel].clearKey();
+            if (m_perfWrap[PERF_WRAP_CHANNEL] == channel) {
+                m_perfWrap[PERF_WRAP_LENGTH] = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns logical channel of current command (index of per-channel state), encoded in
+     * bits 1-2 of proprietary CLA as in the first interindustry CLA. Read from CLA directly,
+     * as APDU.getCLAChannel() of simulator is always 0.
+     */
+    private byte getChannel(byte[] buffer) {
+        return (byte) (buffer[ISO7816.OFFSET_CLA] & 0x03);
+    }
+
     public void process(APDU apdu) throws ISOException
     {
         // get the APDU buffer
@@ -110,7 +382,13 @@ public class TestSWAlgsApplet extends javacard.framework.Applet
         if (selectingApplet())
             return;
 
-        if (apduBuffer[ISO7816.OFFSET_CLA] == CLA_TESTAPPLET) {
+        // chunks of pending key import are staged in m_ramArray used by other commands
+        if ((m_importState[IMPORT_LENGTH] != 0) && (apduBuffer[ISO7816.OFFSET_INS] != INS_IMPORT_KEY)) {
+            abortImport();
+        }
+
+        // logical channel is encoded in lowest two bits of CLA
+        if ((byte) (apduBuffer[ISO7816.OFFSET_CLA] & 0xFC) == CLA_TESTAPPLET) {
             switch ( apduBuffer[ISO7816.OFFSET_INS] ) {
                 case INS_TEST_RSAOAEP:
                     Test_RSAOEAP(apdu);
@@ -118,6 +396,30 @@ public class TestSWAlgsApplet extends javacard.framework.Applet
                 case INS_TEST_RSAOAEP_PERF:
                     Test_RSAOEAP_performance(apdu);
                     break;
+                case INS_TEST_RSAOAEP_REFILL:
+                    Test_RSAOEAP_refillPool(apdu);
+                    break;
+                case INS_TEST_RSAOAEP_BATCH:
+                    Test_RSAOEAP_batch(apdu);
+                    break;
+                case INS_TEST_RSAOAEP_UNWRAPKEY:
+                    Test_RSAOEAP_unwrapKey(apdu);
+                    break;
+                case INS_TEST_ENVELOPE:
+                    Test_envelope(apdu);
+                    break;
+                case INS_TEST_RSAOAEP_STATS:
+                    Test_RSAOEAP_statistics(apdu);
+                    break;
+                case INS_IMPORT_KEY:
+                    ImportKey(apdu);
+                    break;
+                case INS_GET_PUBLIC_KEY:
+                    GetPublicKey(apdu);
+                    break;
+                case INS_TEST_PRIMITIVE_PERF:
+                    Test_primitive_performance(apdu);
+                    break;
                 default :
                     // The INS code is not supported by the dispatcher
                     ISOException.throwIt( ISO7816.SW_INS_NOT_SUPPORTED ) ;
@@ -132,35 +434,463 @@ public class TestSWAlgsApplet extends javacard.framework.Applet
         byte[] buffer = apdu.getBuffer();
         short len = apdu.setIncomingAndReceive();
 
-        TestRSAOEAPSingle((short) 0, (short) 0, true);
-        TestRSAOEAPSingle((short) 1, (short) 0, false);
-        TestRSAOEAPSingle((short) 17, (short) 0, false);
-        TestRSAOEAPSingle((short) 180, (short) 0, false);
-        TestRSAOEAPSingle((short) 181, (short) 0, true);
+        ensureSlotKey((byte) 0);
+        short keyBytes = (short) (m_rsaPubKey.getSize() / 8);
+        // engines of key slot 0 (best engine of the card, re-initialized with the same key)
+        boolean wrapped = (getSlotLayout((byte) 0) == OAEP_LAYOUT_PKCS1_WRAPPED);
+        TestRSAOEAPAll(m_slotEncrypt[0], m_slotDecrypt[0], getMaxDataLength(keyBytes, m_hash.getLength(), !wrapped));
+        // OAEP wrapped into PKCS1 v1.5 padding, unless already tested above
+        if (!wrapped) {
+            TestRSAOEAPAll(m_rsaOAEPPkcs1, m_rsaOAEPPkcs1, getMaxDataLength(keyBytes, m_hash.getLength(), false));
+        }
+    }
+    
+    private void TestRSAOEAPAll(RSAOAEP encOAEP, RSAOAEP decOAEP, short maxDataLen) {
+        TestRSAOEAPSingle(encOAEP, decOAEP, (short) 0, (short) 0, true);
+        TestRSAOEAPSingle(encOAEP, decOAEP, (short) 1, (short) 0, false);
+        TestRSAOEAPSingle(encOAEP, decOAEP, (short) 17, (short) 0, false);
+        TestRSAOEAPSingle(encOAEP, decOAEP, maxDataLen, (short) 0, false);
+        TestRSAOEAPSingle(encOAEP, decOAEP, (short) (maxDataLen + 1), (short) 0, true);
         
-        // Execute with offset 10 (not starting at 0)
-        TestRSAOEAPSingle((short) 17, (short) 10, false);
-        TestRSAOEAPSingle((short) 180, (short) 10, false);
+        // Execute with offset TEST_BASE_OFFSET (not starting at 0)
+        TestRSAOEAPSingle(encOAEP, decOAEP, (short) 17, TEST_BASE_OFFSET, false);
+        TestRSAOEAPSingle(encOAEP, decOAEP, maxDataLen, TEST_BASE_OFFSET, false);
     }
     
-    short m_wrapLen = 0;
+    /**
+     * Performance test of OAEP operations.
+     * P1 ... 1 = encode, 2 = decode (of data wrapped by previous encode with same slot on the same channel;
+     *        only output of the last encode on any channel is kept, decode on other channel fails)
+     * P2 ... key slot
+     * Data: [data length (2B)] [iterations (2B), default 1] [warm-up iterations (2B), default 0], counts 0 - 0x7FFF
+     * Returns [iterations (2B)][output length (2B)][checksum (8B)] where checksum is bytewise 
+     * sum of first 8 bytes of all measured outputs, so the host can time many operations 
+     * in a single round trip.
+     */
     void Test_RSAOEAP_performance(APDU apdu) {
         byte[] buffer = apdu.getBuffer();
         short len = apdu.setIncomingAndReceive();
         
         short dataLen = Util.getShort(buffer, ISO7816.OFFSET_CDATA);
-        if (buffer[ISO7816.OFFSET_P1] == 1) {  
-            m_rsaOAEP.init(m_rsaPubKey, Cipher.MODE_ENCRYPT);
-            m_wrapLen = m_rsaOAEP.doFinal(m_ramArray, (short) 0, dataLen, m_ramArray2, (short) 0);
+        short iterations = 1;
+        short warmup = 0;
+        if (len >= 4) {
+            iterations = Util.getShort(buffer, (short) (ISO7816.OFFSET_CDATA + 2));
         }
-        if (buffer[ISO7816.OFFSET_P1] == 2) {
-            // Assumption: properly wrapped data in m_ramArray2 from previous run of Test_RSAOEAP_performance encode
-            m_rsaOAEP.init(m_rsaPrivKey, Cipher.MODE_DECRYPT);
-            short unwrapLen = m_rsaOAEP.doFinal(m_ramArray2, (short) 0, m_wrapLen, m_ramArray, (short) 0);
+        if (len >= 6) {
+            warmup = Util.getShort(buffer, (short) (ISO7816.OFFSET_CDATA + 4));
+        }
+        if ((iterations < 0) || (warmup < 0)) {
+            ISOException.throwIt(ISO7816.SW_WRONG_DATA);
         }
+        byte op = buffer[ISO7816.OFFSET_P1];
+        if ((op != 1) && (op != 2)) {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        byte slot = getKeySlot(buffer);
+        byte channel = getChannel(buffer);
+        short wrapLen = m_perfWrap[PERF_WRAP_LENGTH];
+        if (op == 2) {
+            if ((wrapLen == 0) || (m_perfWrap[PERF_WRAP_CHANNEL] != channel)) {
+                ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+            }
+            Util.arrayCopyNonAtomic(m_perfWrapped, (short) 0, m_ramArray2, (short) 0, wrapLen);
+        }
+
+        short outLen = 0;
+        Util.arrayFillNonAtomic(buffer, (short) 0, (short) 12, (byte) 0);
+        for (short i = (short) -warmup; i < iterations; i++) {
+            if (op == 1) {  
+                outLen = getSlotCipher(slot, Cipher.MODE_ENCRYPT).doFinal(m_ramArray, (short) 0, dataLen, m_ramArray2, (short) 0);
+                if (i >= 0) {
+                    addChecksum(m_ramArray2, buffer, (short) 4);
+                }
+            }
+            else {
+                // Assumption: data wrapped by previous run of Test_RSAOEAP_performance encode with same slot
+                outLen = getSlotCipher(slot, Cipher.MODE_DECRYPT).doFinal(m_ramArray2, (short) 0, wrapLen, m_ramArray, (short) 0);
+                if (i >= 0) {
+                    addChecksum(m_ramArray, buffer, (short) 4);
+                }
+            }
+        }
+
+        if ((op == 1) && (outLen > 0)) {
+            // keep wrapped data of this channel for subsequent decode
+            Util.arrayCopyNonAtomic(m_ramArray2, (short) 0, m_perfWrapped, (short) 0, outLen);
+            m_perfWrap[PERF_WRAP_LENGTH] = outLen;
+            m_perfWrap[PERF_WRAP_CHANNEL] = channel;
+            RSAOAEP.addStatistics(m_oaepStats, (short) (RSAOAEP.STATS_ENCODE + RSAOAEP.STAT_COPY_BYTES), outLen);
+        }
+
+        Util.setShort(buffer, (short) 0, iterations);
+        Util.setShort(buffer, (short) 2, outLen);
+        apdu.setOutgoingAndSend((short) 0, (short) 12);
+    }
+
+    private void addChecksum(byte[] data, byte[] checksum, short checksumOff) {
+        for (short i = 0; i < 8; i++) {
+            checksum[(short) (checksumOff + i)] += data[i];
+        }
+    }
+    
+    /**
+     * Precomputes (seed, dbMask) pairs for subsequent encryptions. 
+     * P1 ... maximum number of entries to generate (0 = fill whole pool)
+     * P2 ... key slot
+     * Returns number of entries ready in the pool (2B).
+     */
+    void Test_RSAOEAP_refillPool(APDU apdu) {
+        byte[] buffer = apdu.getBuffer();
+
+        short maxEntries = (short) (buffer[ISO7816.OFFSET_P1] & 0xff);
+        if (maxEntries == 0) {
+            maxEntries = (short) 0x7FFF;
+        }
+        byte slot = getKeySlot(buffer);
+        short count = getSlotCipher(slot, Cipher.MODE_ENCRYPT).refillPrecomputedPool(maxEntries);
+
+        Util.setShort(buffer, (short) 0, count);
+        apdu.setOutgoingAndSend((short) 0, (short) 2);
     }
     
-    private void TestRSAOEAPSingle(short dataLen, short baseOffset, boolean shouldFail) {
+    /**
+     * Performs several OAEP operations within one (extended length) APDU.
+     * P1 ... 1 = encode, 2 = decode
+     * P2 ... key slot
+     * Data: sequence of items [length (2B)][payload or ciphertext]
+     * Returns sequence of items [length (2B)][result] in the same order.
+     * Number of items is limited by install flags (INSTALL_BATCH_SHIFT), SW_FILE_FULL if exceeded.
+     */
+    void Test_RSAOEAP_batch(APDU apdu) {
+        byte[] buffer = apdu.getBuffer();
+        byte slot = getKeySlot(buffer);
+        short keyBytes = (short) (m_slotKeyPair[slot].getPublic().getSize() / 8);
+        byte mode = Cipher.MODE_ENCRYPT;
+        if (buffer[ISO7816.OFFSET_P1] == 2) {
+            mode = Cipher.MODE_DECRYPT;
+        } 
+        else if (buffer[ISO7816.OFFSET_P1] != 1) {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+
+        m_batchIn[BATCH_IN_AVAILABLE] = apdu.setIncomingAndReceive();
+        m_batchIn[BATCH_IN_OFFSET] = apdu.getOffsetCdata();
+        short remaining = apdu.getIncomingLength();
+        short outLen = 0;
+        while (remaining > 0) {
+            if (remaining < 2) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+            batchReceive(apdu, m_ramArray, (short) 0, (short) 2);
+            remaining -= 2;
+            short itemLen = Util.getShort(m_ramArray, (short) 0);
+            if ((itemLen < 0) || (itemLen > remaining) || (itemLen > m_arrayLength)) {
+                ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+            }
+            batchReceive(apdu, m_ramArray, (short) 0, itemLen);
+            remaining -= itemLen;
+
+            // result is never longer than key, written directly behind its length
+            if ((short) (outLen + 2 + keyBytes) > m_batchLength) {
+                ISOException.throwIt(ISO7816.SW_FILE_FULL);
+            }
+            short resultLen = getSlotCipher(slot, mode).doFinal(m_ramArray, (short) 0, itemLen, m_batchArray, (short) (outLen + 2));
+            Util.setShort(m_batchArray, outLen, resultLen);
+            outLen += (short) (2 + resultLen);
+        }
+
+        apdu.setOutgoing();
+        apdu.setOutgoingLength(outLen);
+        apdu.sendBytesLong(m_batchArray, (short) 0, outLen);
+    }
+
+    /**
+     * Unwraps OAEP wrapped AES-128 key directly into session key, key value is never returned. 
+     * Fails with SW_CONDITIONS_NOT_SATISFIED while envelope is active on the channel (it uses the session key).
+     * P2 ... key slot
+     * Data: wrapped key (extended length APDU for RSA 2048)
+     * Returns key check value (first 3B of zero block encrypted under unwrapped key).
+     */
+    void Test_RSAOEAP_unwrapKey(APDU apdu) {
+        byte[] buffer = apdu.getBuffer();
+        byte slot = getKeySlot(buffer);
+
+        short len = apdu.setIncomingAndReceive();
+        if (len != apdu.getIncomingLength()) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        byte channel = getChannel(buffer);
+        if (m_envelopeActive[channel]) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        AESKey sessionKey = m_sessionKey[channel];
+        getSlotCipher(slot, Cipher.MODE_DECRYPT).unwrapKey(buffer, apdu.getOffsetCdata(), len, m_ramArray, (short) 0, sessionKey);
+
+        Util.arrayFillNonAtomic(m_ramArray2, (short) 0, (short) 16, (byte) 0);
+        m_aesCipher.init(sessionKey, Cipher.MODE_ENCRYPT);
+        m_aesCipher.doFinal(m_ramArray2, (short) 0, (short) 16, buffer, (short) 0);
+        apdu.setOutgoingAndSend((short) 0, (short) 3);
+    }
+
+    /**
+     * Hybrid envelope: OAEP wrapped AES-128 key followed by AES-CBC ciphertext (zero IV,
+     * key is fresh for every envelope) streamed over several APDUs.
+     * Envelopes on different logical channels are independent.
+     * P1 ... ENVELOPE_INIT: data is wrapped key, P2 is key slot
+     *        ENVELOPE_UPDATE: data is next part of ciphertext (multiple of AES block), returns plaintext
+     *        ENVELOPE_FINAL: as ENVELOPE_UPDATE for last part, envelope is closed afterwards
+     * Padding of plaintext is left to the host.
+     */
+    void Test_envelope(APDU apdu) {
+        byte[] buffer = apdu.getBuffer();
+        byte phase = buffer[ISO7816.OFFSET_P1];
+
+        short len = apdu.setIncomingAndReceive();
+        if (len != apdu.getIncomingLength()) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short dataOff = apdu.getOffsetCdata();
+        byte channel = getChannel(buffer);
+
+        if (phase == ENVELOPE_INIT) {
+            m_envelopeActive[channel] = false;
+            byte slot = getKeySlot(buffer);
+            getSlotCipher(slot, Cipher.MODE_DECRYPT).unwrapKey(buffer, dataOff, len, m_ramArray, (short) 0, m_sessionKey[channel]);
+            m_aesCbcCipher[channel].init(m_sessionKey[channel], Cipher.MODE_DECRYPT);
+            m_envelopeActive[channel] = true;
+            return;
+        }
+        if ((phase != ENVELOPE_UPDATE) && (phase != ENVELOPE_FINAL)) {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        if (!m_envelopeActive[channel]) {
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        if ((short) (len % AES_BLOCK_LENGTH) != 0) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
+        short outLen;
+        if (phase == ENVELOPE_UPDATE) {
+            outLen = m_aesCbcCipher[channel].update(buffer, dataOff, len, buffer, (short) 0);
+        }
+        else {
+            outLen = m_aesCbcCipher[channel].doFinal(buffer, dataOff, len, buffer, (short) 0);
+            m_envelopeActive[channel] = false;
+            m_sessionKey[channel].clearKey();
+        }
+        apdu.setOutgoingAndSend((short) 0, outLen);
+    }
+
+    /**
+     * Returns and resets work counters collected by all RSAOAEP instances since last call.
+     * Returns RSAOAEP.STATS_LENGTH bytes: 4B counters of RSA operations, MGF1 hash blocks, 
+     * hashed bytes, copied/xored bytes, RSA modulus bytes, persistent bytes written and 
+     * loop iterations for encode, decode and pool precomputation, followed by counters 
+     * of hash compression function calls per hash algorithm.
+     */
+    void Test_RSAOEAP_statistics(APDU apdu) {
+        byte[] buffer = apdu.getBuffer();
+
+        Util.arrayCopyNonAtomic(m_oaepStats, (short) 0, buffer, (short) 0, RSAOAEP.STATS_LENGTH);
+        Util.arrayFillNonAtomic(m_oaepStats, (short) 0, RSAOAEP.STATS_LENGTH, (byte) 0);
+        apdu.setOutgoingAndSend((short) 0, RSAOAEP.STATS_LENGTH);
+    }
+
+    /**
+     * Imports RSA CRT key pair into key slot, one component at a time. Component longer 
+     * than one APDU is sent in several chunks, all but last with KEY_CHUNK_MORE set in P1. 
+     * Slot can be used after all components (KEY_MODULUS to KEY_PQ) were imported.
+     * P1 ... component (KEY_MODULUS, KEY_PUBLIC_EXPONENT, KEY_P, KEY_Q, KEY_DP, KEY_DQ, KEY_PQ) | KEY_CHUNK_MORE
+     * P2 ... key slot
+     * Data: next chunk of component value (big endian)
+     * Chunks are staged in RAM (m_ramArray). Chunk of other component or slot than the pending 
+     * one fails with SW_CONDITIONS_NOT_SATISFIED and aborts the pending import, as does any 
+     * other command in between. Aborted component must be sent again from its first chunk.
+     */
+    void ImportKey(APDU apdu) {
+        byte[] buffer = apdu.getBuffer();
+        byte slot = getKeySlot(buffer);
+        byte component = (byte) (buffer[ISO7816.OFFSET_P1] & ~KEY_CHUNK_MORE);
+        if ((component < KEY_MODULUS) || (component > KEY_PQ)) {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+
+        short len = apdu.setIncomingAndReceive();
+        if (len != apdu.getIncomingLength()) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short importedLen = m_importState[IMPORT_LENGTH];
+        if (importedLen == 0) {
+            m_importState[IMPORT_COMPONENT] = component;
+            m_importState[IMPORT_SLOT] = slot;
+        } else if ((m_importState[IMPORT_COMPONENT] != component) || (m_importState[IMPORT_SLOT] != slot)) {
+            abortImport();
+            ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+        }
+        if ((short) (importedLen + len) > m_arrayLength) {
+            abortImport();
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        Util.arrayCopyNonAtomic(buffer, apdu.getOffsetCdata(), m_ramArray, importedLen, len);
+        m_importState[IMPORT_LENGTH] = (short) (importedLen + len);
+        if ((buffer[ISO7816.OFFSET_P1] & KEY_CHUNK_MORE) != 0) {
+            return;
+        }
+
+        // partially imported key must not be used
+        m_slotKeyState[slot] = KEY_EMPTY;
+        m_slotReady[slot] = false;
+        RSAPublicKey pubKey = (RSAPublicKey) m_slotKeyPair[slot].getPublic();
+        RSAPrivateCrtKey privKey = (RSAPrivateCrtKey) m_slotKeyPair[slot].getPrivate();
+        short valueLen = m_importState[IMPORT_LENGTH];
+        try {
+            switch (component) {
+                case KEY_MODULUS: pubKey.setModulus(m_ramArray, (short) 0, valueLen); break;
+                case KEY_PUBLIC_EXPONENT: pubKey.setExponent(m_ramArray, (short) 0, valueLen); break;
+                case KEY_P: privKey.setP(m_ramArray, (short) 0, valueLen); break;
+                case KEY_Q: privKey.setQ(m_ramArray, (short) 0, valueLen); break;
+                case KEY_DP: privKey.setDP1(m_ramArray, (short) 0, valueLen); break;
+                case KEY_DQ: privKey.setDQ1(m_ramArray, (short) 0, valueLen); break;
+                default: privKey.setPQ(m_ramArray, (short) 0, valueLen); break;
+            }
+        }
+        catch (CryptoException e) {
+            // e.g., value longer than key, staged value must not stay in RAM
+            abortImport();
+            throw e;
+        }
+        abortImport();
+
+        m_slotImportMask[slot] |= (byte) (1 << (short) (component - 1));
+        if (m_slotImportMask[slot] == KEY_ALL_COMPONENTS) {
+            m_slotImportMask[slot] = 0;
+            m_slotKeyState[slot] = KEY_READY;
+        }
+    }
+
+    // clears staged chunks of pending import
+    private void abortImport() {
+        Util.arrayFillNonAtomic(m_ramArray, (short) 0, m_importState[IMPORT_LENGTH], (byte) 0);
+        m_importState[IMPORT_LENGTH] = 0;
+    }
+
+    /**
+     * Exports public key of key slot, so the host can encrypt for the slot without the card.
+     * P2 ... key slot
+     * Returns [slot (1B)][MessageDigest.ALG_* of OAEP hash (1B)][OAEP_LAYOUT_* (1B)]
+     * [modulus length (2B)][modulus][exponent length (2B)][exponent], longer than 256B 
+     * for RSA 2048 and above (extended length APDU).
+     */
+    void GetPublicKey(APDU apdu) {
+        byte[] buffer = apdu.getBuffer();
+        byte slot = getKeySlot(buffer);
+        ensureSlotKey(slot);
+        RSAPublicKey pubKey = (RSAPublicKey) m_slotKeyPair[slot].getPublic();
+
+        m_ramArray[0] = slot;
+        m_ramArray[1] = m_slotHash[slot].getAlgorithm();
+        m_ramArray[2] = getSlotLayout(slot);
+        short modLen = pubKey.getModulus(m_ramArray, (short) 5);
+        Util.setShort(m_ramArray, (short) 3, modLen);
+        short expLen = pubKey.getExponent(m_ramArray2, (short) 2);
+        Util.setShort(m_ramArray2, (short) 0, expLen);
+
+        apdu.setOutgoing();
+        apdu.setOutgoingLength((short) (5 + modLen + 2 + expLen));
+        apdu.sendBytesLong(m_ramArray, (short) 0, (short) (5 + modLen));
+        apdu.sendBytesLong(m_ramArray2, (short) 0, (short) (2 + expLen));
+    }
+
+    /**
+     * Performance test of primitives used by OAEP, timed by the host as Test_RSAOEAP_performance.
+     * P1 ... PERF_HASH, PERF_RSA_PUBLIC or PERF_RSA_PRIVATE
+     * P2 ... key slot (hash or key of the slot is used)
+     * Data: [data length (2B), hashed length for PERF_HASH, ignored for RSA] [iterations (2B)]
+     * Returns [iterations (2B)][output length (2B)]. Zero iterations measure command overhead.
+     */
+    void Test_primitive_performance(APDU apdu) {
+        byte[] buffer = apdu.getBuffer();
+        short len = apdu.setIncomingAndReceive();
+        if (len < 4) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short dataLen = Util.getShort(buffer, ISO7816.OFFSET_CDATA);
+        short iterations = Util.getShort(buffer, (short) (ISO7816.OFFSET_CDATA + 2));
+        byte op = buffer[ISO7816.OFFSET_P1];
+        byte slot = getKeySlot(buffer);
+        ensureSlotKey(slot);
+
+        short outLen = 0;
+        if (op == PERF_HASH) {
+            if ((dataLen < 0) || (dataLen > m_arrayLength)) {
+                ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+            }
+            for (short i = 0; i < iterations; i++) {
+                outLen = m_slotHash[slot].doFinal(m_ramArray, (short) 0, dataLen, m_ramArray2, (short) 0);
+            }
+        }
+        else if ((op == PERF_RSA_PUBLIC) || (op == PERF_RSA_PRIVATE)) {
+            Key key = m_slotKeyPair[slot].getPrivate();
+            byte mode = Cipher.MODE_DECRYPT;
+            if (op == PERF_RSA_PUBLIC) {
+                key = m_slotKeyPair[slot].getPublic();
+                mode = Cipher.MODE_ENCRYPT;
+            }
+            // block with leading zero byte is smaller than modulus
+            short blockLen = (short) (key.getSize() / 8);
+            Util.arrayFillNonAtomic(m_ramArray, (short) 0, blockLen, (byte) 0x55);
+            m_ramArray[0] = 0;
+            short inOff = 0;
+            for (short i = 0; i < iterations; i++) {
+                // jcardsim does not reset RSA engine after doFinal, simulated card needs init before every use
+                if ((i == 0) || !m_isRealCard) {
+                    m_rsaEngineNopad.init(key, mode);
+                }
+                try {
+                    outLen = m_rsaEngineNopad.doFinal(m_ramArray, inOff, (short) (blockLen - inOff), m_ramArray2, (short) 0);
+                }
+                catch (CryptoException e) {
+                    if ((inOff != 0) || (e.getReason() != CryptoException.ILLEGAL_USE)) {
+                        throw e;
+                    }
+                    // some implementations accept raw RSA input only of modulus length - 1 bytes, start again
+                    inOff = 1;
+                    i = (short) -1;
+                }
+            }
+        }
+        else {
+            ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+
+        Util.setShort(buffer, (short) 0, iterations);
+        Util.setShort(buffer, (short) 2, outLen);
+        apdu.setOutgoingAndSend((short) 0, (short) 4);
+    }
+
+    /**
+     * Copies next len bytes of incoming command data into dst, receives further 
+     * parts of (extended length) command data when necessary.
+     */
+    private void batchReceive(APDU apdu, byte[] dst, short dstOff, short len) {
+        byte[] buffer = apdu.getBuffer();
+        while (len > 0) {
+            if (m_batchIn[BATCH_IN_AVAILABLE] == 0) {
+                m_batchIn[BATCH_IN_OFFSET] = apdu.getOffsetCdata();
+                m_batchIn[BATCH_IN_AVAILABLE] = apdu.receiveBytes(m_batchIn[BATCH_IN_OFFSET]);
+            }
+            short chunk = (len < m_batchIn[BATCH_IN_AVAILABLE]) ? len : m_batchIn[BATCH_IN_AVAILABLE];
+            Util.arrayCopyNonAtomic(buffer, m_batchIn[BATCH_IN_OFFSET], dst, dstOff, chunk);
+            m_batchIn[BATCH_IN_OFFSET] += chunk;
+            m_batchIn[BATCH_IN_AVAILABLE] -= chunk;
+            dstOff += chunk;
+            len -= chunk;
+        }
+    }
+
+    private void TestRSAOEAPSingle(RSAOAEP encOAEP, RSAOAEP decOAEP, short dataLen, short baseOffset, boolean shouldFail) {
         Util.arrayFillNonAtomic(m_ramArray, (short) 0, (short) m_ramArray.length, (byte) 0);
         Util.arrayFillNonAtomic(m_ramArray2, (short) 0, (short) m_ramArray2.length, (byte) 0);
 
@@ -170,11 +900,11 @@ public class TestSWAlgsApplet extends javacard.framework.Applet
         boolean bFailed = false;
         short unwrapLen = 0;
         try {
-            m_rsaOAEP.init(m_rsaPubKey, Cipher.MODE_ENCRYPT);
-            short wrapLen = m_rsaOAEP.doFinal(m_ramArray2, baseOffset, dataLen, m_ramArray2, baseOffset);
+            encOAEP.init(m_rsaPubKey, Cipher.MODE_ENCRYPT);
+            short wrapLen = encOAEP.doFinal(m_ramArray2, baseOffset, dataLen, m_ramArray2, baseOffset);
 
-            m_rsaOAEP.init(m_rsaPrivKey, Cipher.MODE_DECRYPT);
-            unwrapLen = m_rsaOAEP.doFinal(m_ramArray2, baseOffset, wrapLen, m_ramArray2, baseOffset);
+            decOAEP.init(m_rsaPrivKey, Cipher.MODE_DECRYPT);
+            unwrapLen = decOAEP.doFinal(m_ramArray2, baseOffset, wrapLen, m_ramArray2, baseOffset);
         }
         catch (ISOException e) {
             if (shouldFail) {
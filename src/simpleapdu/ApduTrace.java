@@ -0,0 +1,106 @@
+package simpleapdu;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary trace of APDU session. File starts with magic "APDT" and version byte,
+ * followed by records [start (8B)][elapsed (8B)][command length (4B)][command]
+ * [response length (4B)][response (data + SW)], where start is time in nanoseconds
+ * since the beginning of recording and elapsed is duration of the command.
+ */
+public class ApduTrace {
+    private static final byte[] MAGIC = {'A', 'P', 'D', 'T'};
+    private static final byte VERSION = 1;
+
+    public static class Record {
+        public final long m_start;
+        public final long m_elapsed;
+        public final byte[] m_command;
+        public final byte[] m_response;
+
+        public Record(long start, long elapsed, byte[] command, byte[] response) {
+            m_start = start;
+            m_elapsed = elapsed;
+            m_command = command;
+            m_response = response;
+        }
+
+        public int getSW() {
+            return ((m_response[m_response.length - 2] & 0xff) << 8) | (m_response[m_response.length - 1] & 0xff);
+        }
+    }
+
+    public static class Recorder {
+        private final DataOutputStream m_out;
+        private final long m_startTime;
+
+        public Recorder(String fileName) throws IOException {
+            m_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+            m_out.write(MAGIC);
+            m_out.writeByte(VERSION);
+            m_startTime = System.nanoTime();
+        }
+
+        /**
+         * Records command transmitted from absolute position cmdOff of command buffer,
+         * finished just now after elapsed nanoseconds.
+         */
+        public synchronized void record(ByteBuffer command, int cmdOff, int cmdLen, ByteBuffer response, int respOff, int respLen, long elapsed) throws IOException {
+            m_out.writeLong(System.nanoTime() - elapsed - m_startTime);
+            m_out.writeLong(elapsed);
+            writeBytes(command, cmdOff, cmdLen);
+            writeBytes(response, respOff, respLen);
+        }
+
+        private void writeBytes(ByteBuffer data, int offset, int length) throws IOException {
+            m_out.writeInt(length);
+            for (int i = 0; i < length; i++) {
+                m_out.write(data.get(offset + i));
+            }
+        }
+
+        public synchronized void close() throws IOException {
+            m_out.close();
+        }
+    }
+
+    public static List<Record> read(String fileName) throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readByte() != VERSION) {
+                throw new IOException("Not an APDU trace file: " + fileName);
+            }
+            while (true) {
+                long start;
+                try {
+                    start = in.readLong();
+                } catch (EOFException ex) {
+                    break;
+                }
+                long elapsed = in.readLong();
+                byte[] command = new byte[in.readInt()];
+                in.readFully(command);
+                byte[] response = new byte[in.readInt()];
+                in.readFully(response);
+                records.add(new Record(start, elapsed, command, response));
+            }
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+}
@@ -0,0 +1,168 @@
+package simpleapdu;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Standard micro-benchmark suite of TestSWAlgsApplet: hash, raw RSA and OAEP of every key
+ * slot of the applet. Time of one operation is measured as difference between command
+ * performing all iterations and the same command with zero iterations, so transport
+ * overhead is excluded. Results are stored into PerfDatabase under card model identified
+ * by CPLC (or ATR).
+ *
+ * Usage: CardBenchmark database_file applet_version [iterations]
+ */
+public class CardBenchmark {
+    static final int DEFAULT_ITERATIONS = 10;
+    static final int REPEATS = 3;                   // best of repeated measurements is taken
+    static final int[] HASH_LENGTHS = {32, 128};
+    static final int OAEP_DATA_LENGTH = 16;
+    static final int OAEP_POOL_ENTRIES = 7;         // largest pool depth of install flags, drained before encode is measured
+
+    private final static byte[] SELECT_TESTAPPLET = {(byte) 0x00, (byte) 0xa4, (byte) 0x04, (byte) 0x00, (byte) 0x0b,
+        (byte) 0x4C, (byte) 0x61, (byte) 0x62, (byte) 0x61, (byte) 0x6B,
+        (byte) 0x41, (byte) 0x70, (byte) 0x70, (byte) 0x6C, (byte) 0x65, (byte) 0x74};
+    private final static byte CLA_TESTAPPLET = (byte) 0xB0;
+    private final static byte INS_TEST_RSAOAEP_PERF = (byte) 0x5B;
+    private final static byte INS_GET_PUBLIC_KEY = (byte) 0x63;
+    private final static byte INS_TEST_PRIMITIVE_PERF = (byte) 0x64;
+    private final static byte PERF_ENCODE = (byte) 0x01;
+    private final static byte PERF_DECODE = (byte) 0x02;
+    private final static byte PERF_HASH = (byte) 0x01;
+    private final static byte PERF_RSA_PUBLIC = (byte) 0x02;
+    private final static byte PERF_RSA_PRIVATE = (byte) 0x03;
+
+    private final CardMngr m_cardManager;
+    private final boolean m_simulator;
+    private final int m_iterations;
+
+    public CardBenchmark(CardMngr cardManager, boolean simulator, int iterations) {
+        m_cardManager = cardManager;
+        m_simulator = simulator;
+        m_iterations = iterations;
+    }
+
+    private ResponseAPDU send(byte[] apdu) throws Exception {
+        return m_simulator ? new ResponseAPDU(m_cardManager.sendAPDUSimulator(apdu)) : m_cardManager.sendAPDU(apdu);
+    }
+
+    // performance command with data [data length (2B)][iterations (2B)]
+    private static byte[] buildCommand(byte ins, byte p1, byte slot, int dataLength, int iterations) {
+        byte[] data = {(byte) (dataLength >> 8), (byte) dataLength, (byte) (iterations >> 8), (byte) iterations};
+        return new CommandAPDU(CLA_TESTAPPLET, ins, p1, slot, data).getBytes();
+    }
+
+    // milliseconds of one execution of command
+    private double measure(byte[] apdu) throws Exception {
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < REPEATS; i++) {
+            ResponseAPDU resp = send(apdu);
+            if (resp.getSW() != 0x9000) {
+                throw new IllegalStateException("Benchmark command " + m_cardManager.bytesToHex(apdu) + " failed with " + Integer.toHexString(resp.getSW()));
+            }
+            best = Math.min(best, m_cardManager.getLastTransmitTime() / 1000000.0);
+        }
+        return best;
+    }
+
+    private double measureOperation(byte ins, byte p1, byte slot, int dataLength) throws Exception {
+        double overhead = measure(buildCommand(ins, p1, slot, dataLength, 0));
+        double total = measure(buildCommand(ins, p1, slot, dataLength, m_iterations));
+        return Math.max(0, total - overhead) / m_iterations;
+    }
+
+    /**
+     * Runs the suite for all key slots of applet (applet must be selected). Benchmarks of
+     * slots with the same key length or hash are executed only once.
+     * @return milliseconds per operation of every benchmark
+     */
+    public Map<String, Double> run() throws Exception {
+        Map<String, Double> results = new LinkedHashMap<String, Double>();
+        results.put("apdu.overhead", measure(buildCommand(INS_TEST_PRIMITIVE_PERF, PERF_HASH, (byte) 0, 0, 0)));
+        for (byte slot = 0; ; slot++) {
+            ResponseAPDU resp = send(new CommandAPDU(CLA_TESTAPPLET, INS_GET_PUBLIC_KEY, 0, slot, 65536).getBytes());
+            if (resp.getSW() != 0x9000) {
+                break;  // no more key slots
+            }
+            // [slot][hash algorithm][layout][modulus length (2B)]...
+            byte[] data = resp.getData();
+            String hashName = CardMngr.getHashName(data[1]);
+            int bits = (((data[3] & 0xff) << 8) | (data[4] & 0xff)) * 8;
+
+            for (int length : HASH_LENGTHS) {
+                String name = "hash." + hashName + "." + length;
+                if (!results.containsKey(name)) {
+                    results.put(name, measureOperation(INS_TEST_PRIMITIVE_PERF, PERF_HASH, slot, length));
+                }
+            }
+            if (!results.containsKey("rsa.public." + bits)) {
+                results.put("rsa.public." + bits, measureOperation(INS_TEST_PRIMITIVE_PERF, PERF_RSA_PUBLIC, slot, 0));
+                results.put("rsa.private." + bits, measureOperation(INS_TEST_PRIMITIVE_PERF, PERF_RSA_PRIVATE, slot, 0));
+            }
+            String oaep = bits + "." + hashName + "." + OAEP_DATA_LENGTH;
+            if (!results.containsKey("oaep.encode." + oaep)) {
+                // precomputed entries would make first encodes faster
+                send(buildCommand(INS_TEST_RSAOAEP_PERF, PERF_ENCODE, slot, OAEP_DATA_LENGTH, OAEP_POOL_ENTRIES));
+                results.put("oaep.encode." + oaep, measureOperation(INS_TEST_RSAOAEP_PERF, PERF_ENCODE, slot, OAEP_DATA_LENGTH));
+                // decodes output of the last encode
+                results.put("oaep.decode." + oaep, measureOperation(INS_TEST_RSAOAEP_PERF, PERF_DECODE, slot, OAEP_DATA_LENGTH));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return results of run() as database records of given card
+     */
+    public List<PerfDatabase.Result> toResults(Map<String, Double> measured, CardIdentity identity, String appletVersion) {
+        String timestamp = Instant.now().toString();
+        List<PerfDatabase.Result> results = new ArrayList<PerfDatabase.Result>();
+        for (Map.Entry<String, Double> benchmark : measured.entrySet()) {
+            // overhead is measured per command
+            int iterations = benchmark.getKey().equals("apdu.overhead") ? 1 : m_iterations;
+            results.add(new PerfDatabase.Result(timestamp, identity.getModelId(), identity.getCardId(), identity.getModelName(),
+                    appletVersion, benchmark.getKey(), iterations, benchmark.getValue()));
+        }
+        return results;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: CardBenchmark database_file applet_version [iterations]");
+            return;
+        }
+        try {
+            int iterations = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_ITERATIONS;
+            CardMngr cardManager = new CardMngr();
+            if (!cardManager.ConnectToCard()) {
+                System.out.println("Failed to connect to card");
+                return;
+            }
+            cardManager.setQuiet(true);
+            CardIdentity identity = cardManager.identifyCard();
+            System.out.print(identity);
+            // reading of CPLC may select card manager
+            cardManager.sendAPDU(SELECT_TESTAPPLET);
+
+            CardBenchmark benchmark = new CardBenchmark(cardManager, false, iterations);
+            Map<String, Double> measured = benchmark.run();
+            System.out.println("benchmark;ms_per_op;ops_per_sec");
+            for (Map.Entry<String, Double> result : measured.entrySet()) {
+                System.out.println(String.format(Locale.ROOT, "%s;%.3f;%.2f", result.getKey(), result.getValue(),
+                        (result.getValue() > 0) ? 1000 / result.getValue() : 0));
+            }
+            new PerfDatabase(args[0]).append(benchmark.toResults(measured, identity, args[1]));
+            System.out.println("Results of " + identity.getModelId() + " stored into " + args[0]);
+
+            cardManager.DisconnectFromCard();
+        } catch (Exception ex) {
+            System.out.println("Exception : " + ex);
+        }
+    }
+}
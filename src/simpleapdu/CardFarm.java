@@ -0,0 +1,252 @@
+package simpleapdu;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import javax.smartcardio.CardException;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Spreads commands over all connected cards. Every card has one worker thread
+ * which takes jobs from shared queue whenever the card is idle, so faster or less
+ * loaded cards process more jobs. Job of removed card is retried on another card.
+ * Commands bound to card specific key (e.g., unwrap with key generated on card)
+ * can be pinned to one card. Queues are guarded by the farm monitor, which is never
+ * held while communicating with card or waiting for workers.
+ */
+public class CardFarm {
+    public static final int ANY_CARD = -1;
+
+    private final byte[] m_selectAPDU;
+    private final BlockingQueue<Job> m_queue = new LinkedBlockingQueue<Job>();
+    private final List<Worker> m_workers = new ArrayList<Worker>();
+    private volatile boolean m_running = false;
+
+    /**
+     * @param selectAPDU command selecting applet, sent to every card during open()
+     */
+    public CardFarm(byte[] selectAPDU) {
+        m_selectAPDU = selectAPDU.clone();
+    }
+
+    /**
+     * Connects to all readers with card present and selects applet on them.
+     * @return number of cards ready to process jobs
+     */
+    public int open() throws Exception {
+        // cards are selected without the monitor, workers are added once all are ready
+        List<CardMngr> selected = new ArrayList<CardMngr>();
+        for (CardMngr manager : CardMngr.ConnectToAllCards()) {
+            manager.setQuiet(true);
+            ResponseAPDU resp = manager.sendAPDU(m_selectAPDU);
+            if (resp.getSW() != 0x9000) {
+                System.out.println("Applet not selected on " + manager.m_terminal + ", card skipped");
+                manager.DisconnectFromCard();
+                continue;
+            }
+            selected.add(manager);
+        }
+        synchronized (this) {
+            m_running = true;
+            for (CardMngr manager : selected) {
+                Worker worker = new Worker(m_workers.size(), manager);
+                m_workers.add(worker);
+                worker.start();
+            }
+            return m_workers.size();
+        }
+    }
+
+    public void close() throws Exception {
+        List<Worker> workers;
+        synchronized (this) {
+            m_running = false;
+            workers = new ArrayList<Worker>(m_workers);
+            notifyAll();
+        }
+        // workers need the monitor to finish, so join without it
+        for (Worker worker : workers) {
+            worker.interrupt();
+            worker.join();
+            worker.m_manager.DisconnectFromCard();
+        }
+        synchronized (this) {
+            failPendingJobs(m_queue);
+            for (Worker worker : workers) {
+                failPendingJobs(worker.m_pinned);
+            }
+        }
+    }
+
+    public synchronized int getCardCount() {
+        return m_workers.size();
+    }
+
+    public CompletableFuture<ResponseAPDU> submit(byte[] apdu) {
+        return submit(apdu, ANY_CARD);
+    }
+
+    /**
+     * @param cardIndex index of card (order of open()) which must process the command or ANY_CARD,
+     *        future of unknown index completes exceptionally with IllegalArgumentException
+     */
+    public synchronized CompletableFuture<ResponseAPDU> submit(byte[] apdu, int cardIndex) {
+        Job job = new Job(apdu, cardIndex);
+        if (!m_running) {
+            job.m_result.completeExceptionally(new CardException("Card farm is closed"));
+        } else if (cardIndex == ANY_CARD) {
+            if (!hasHealthyWorker()) {
+                job.m_result.completeExceptionally(new CardException("No card available"));
+            } else {
+                m_queue.add(job);
+                notifyAll();
+            }
+        } else if ((cardIndex < 0) || (cardIndex >= m_workers.size())) {
+            job.m_result.completeExceptionally(new IllegalArgumentException("No card with index " + cardIndex));
+        } else {
+            Worker worker = m_workers.get(cardIndex);
+            if (!worker.m_healthy) {
+                job.m_result.completeExceptionally(new CardException("Card not available"));
+            } else {
+                worker.m_pinned.add(job);
+                notifyAll();
+            }
+        }
+        return job.m_result;
+    }
+
+    /**
+     * @return one line per card: reader, state, processed commands, failures, throughput
+     */
+    public synchronized String getReport() {
+        StringBuilder report = new StringBuilder();
+        for (Worker worker : m_workers) {
+            report.append(String.format(Locale.ROOT, "%d;%s;%s;%d;%d;%.2f\n", worker.m_index, worker.m_manager.m_terminal,
+                    worker.m_healthy ? "ok" : "removed", worker.m_completed, worker.m_failed, worker.getThroughput()));
+        }
+        return report.toString();
+    }
+
+    private synchronized boolean hasHealthyWorker() {
+        for (Worker worker : m_workers) {
+            if (worker.m_healthy) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void retryOrFail(Job job, Exception ex) {
+        job.m_attempts++;
+        if (job.m_cardIndex == ANY_CARD && m_running && job.m_attempts < getCardCount() && hasHealthyWorker()) {
+            m_queue.add(job);
+            notifyAll();
+        } else {
+            job.m_result.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Blocks until job for given worker is available.
+     * @return next job, pinned jobs first, or null if farm is closed or worker retired
+     */
+    private synchronized Job takeJob(Worker worker) throws InterruptedException {
+        while (m_running && worker.m_healthy) {
+            Job job = worker.m_pinned.poll();
+            if (job == null) {
+                job = m_queue.poll();
+            }
+            if (job != null) {
+                return job;
+            }
+            wait();
+        }
+        return null;
+    }
+
+    private synchronized void retireWorker(Worker worker) {
+        failPendingJobs(worker.m_pinned);
+        if (!hasHealthyWorker()) {
+            failPendingJobs(m_queue);
+        }
+    }
+
+    private static void failPendingJobs(BlockingQueue<Job> queue) {
+        Job job;
+        while ((job = queue.poll()) != null) {
+            job.m_result.completeExceptionally(new CardException("Card not available"));
+        }
+    }
+
+    private static class Job {
+        final byte[] m_apdu;
+        final int m_cardIndex;
+        final CompletableFuture<ResponseAPDU> m_result = new CompletableFuture<ResponseAPDU>();
+        int m_attempts = 0;
+
+        Job(byte[] apdu, int cardIndex) {
+            m_apdu = apdu;
+            m_cardIndex = cardIndex;
+        }
+    }
+
+    private class Worker extends Thread {
+        final int m_index;
+        final CardMngr m_manager;
+        final BlockingQueue<Job> m_pinned = new LinkedBlockingQueue<Job>();
+        volatile boolean m_healthy = true;
+        volatile long m_completed = 0;
+        volatile long m_failed = 0;
+        volatile long m_busyTime = 0;
+
+        Worker(int index, CardMngr manager) {
+            super("CardFarm-" + index);
+            setDaemon(true);
+            m_index = index;
+            m_manager = manager;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Job job;
+                try {
+                    job = takeJob(this);
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                if (job == null) {
+                    break;
+                }
+
+                long elapsed = -System.nanoTime();
+                try {
+                    ResponseAPDU resp = m_manager.sendAPDU(job.m_apdu);
+                    elapsed += System.nanoTime();
+                    m_busyTime += elapsed;
+                    m_completed++;
+                    job.m_result.complete(resp);
+                } catch (CardException | IllegalStateException ex) {
+                    // card removed or reader disconnected, other cards take over
+                    m_failed++;
+                    m_healthy = false;
+                    retryOrFail(job, ex);
+                } catch (Exception ex) {
+                    m_failed++;
+                    job.m_result.completeExceptionally(ex);
+                }
+            }
+            retireWorker(this);
+        }
+
+        /**
+         * @return commands per second of time spent communicating with card
+         */
+        double getThroughput() {
+            return (m_busyTime == 0) ? 0 : m_completed * 1000000000.0 / m_busyTime;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package simpleapdu;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Identification of card from CPLC data (GlobalPlatform Card Production Life Cycle) or
+ * from ATR if card does not provide CPLC. Cards of the same model share IC fabricator,
+ * IC type, operating system and its release, IC serial number and batch identifier
+ * distinguish individual cards.
+ */
+public class CardIdentity {
+    public static final int CPLC_LENGTH = 42;
+
+    // OFFSETS OF CPLC FIELDS (2B UNLESS NOTED)
+    static final int CPLC_IC_FABRICATOR = 0;
+    static final int CPLC_IC_TYPE = 2;
+    static final int CPLC_OS_ID = 4;
+    static final int CPLC_OS_RELEASE_DATE = 6;
+    static final int CPLC_OS_RELEASE_LEVEL = 8;
+    static final int CPLC_IC_FABRICATION_DATE = 10;
+    static final int CPLC_IC_SERIAL_NUMBER = 12;        // 4B
+    static final int CPLC_IC_BATCH_IDENTIFIER = 16;
+    static final int CPLC_IC_MODULE_FABRICATOR = 18;
+    static final int CPLC_IC_MODULE_PACKAGING_DATE = 20;
+    static final int CPLC_ICC_MANUFACTURER = 22;
+    static final int CPLC_IC_EMBEDDING_DATE = 24;
+
+    private static final Map<Integer, String> FABRICATORS = new HashMap<Integer, String>();
+    static {
+        FABRICATORS.put(0x3060, "Renesas");
+        FABRICATORS.put(0x4090, "Infineon");
+        FABRICATORS.put(0x4180, "Atmel");
+        FABRICATORS.put(0x4250, "Samsung");
+        FABRICATORS.put(0x4790, "NXP");
+    }
+
+    private final byte[] m_atr;
+    private final byte[] m_cplc;
+
+    /**
+     * @param cplc CPLC value as returned by CardMngr.GetCPLCData(), null or incomplete data is ignored
+     */
+    public CardIdentity(byte[] atr, byte[] cplc) {
+        m_atr = atr.clone();
+        m_cplc = ((cplc != null) && (cplc.length >= CPLC_LENGTH)) ? cplc.clone() : null;
+    }
+
+    public boolean hasCPLC() {
+        return m_cplc != null;
+    }
+
+    public String getATR() {
+        return toHex(m_atr, 0, m_atr.length);
+    }
+
+    /**
+     * @return identifier shared by cards of the same model, "cplc:" fabricator-IC type-OS-OS release
+     * date-OS release level, or "atr:" whole ATR if CPLC is not available
+     */
+    public String getModelId() {
+        if (m_cplc == null) {
+            return "atr:" + getATR();
+        }
+        return "cplc:" + getField(CPLC_IC_FABRICATOR, 2) + "-" + getField(CPLC_IC_TYPE, 2) + "-" + getField(CPLC_OS_ID, 2)
+                + "-" + getField(CPLC_OS_RELEASE_DATE, 2) + "-" + getField(CPLC_OS_RELEASE_LEVEL, 2);
+    }
+
+    /**
+     * @return identifier of individual card (model with IC serial number and batch),
+     * same as model for cards without CPLC
+     */
+    public String getCardId() {
+        if (m_cplc == null) {
+            return getModelId();
+        }
+        return getModelId() + "-" + getField(CPLC_IC_SERIAL_NUMBER, 4) + "-" + getField(CPLC_IC_BATCH_IDENTIFIER, 2);
+    }
+
+    /**
+     * @return human readable model, e.g., "NXP IC 5040, OS 4791 release 2031/0000"
+     */
+    public String getModelName() {
+        if (m_cplc == null) {
+            return "unknown (ATR " + getATR() + ")";
+        }
+        int fabricator = getShort(CPLC_IC_FABRICATOR);
+        String name = FABRICATORS.get(fabricator);
+        if (name == null) {
+            name = "fabricator " + getField(CPLC_IC_FABRICATOR, 2);
+        }
+        return name + " IC " + getField(CPLC_IC_TYPE, 2) + ", OS " + getField(CPLC_OS_ID, 2)
+                + " release " + getField(CPLC_OS_RELEASE_DATE, 2) + "/" + getField(CPLC_OS_RELEASE_LEVEL, 2);
+    }
+
+    private int getShort(int offset) {
+        return ((m_cplc[offset] & 0xff) << 8) | (m_cplc[offset + 1] & 0xff);
+    }
+
+    private String getField(int offset, int length) {
+        return toHex(m_cplc, offset, length);
+    }
+
+    private static String toHex(byte[] data, int offset, int length) {
+        StringBuilder hex = new StringBuilder();
+        for (int i = offset; i < offset + length; i++) {
+            hex.append(String.format("%02x", data[i] & 0xff));
+        }
+        return hex.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append("ATR: ").append(getATR()).append("\n");
+        text.append("Model: ").append(getModelName()).append("\n");
+        text.append("Model id: ").append(getModelId()).append("\n");
+        if (m_cplc != null) {
+            text.append("IC fabrication date: ").append(getField(CPLC_IC_FABRICATION_DATE, 2)).append("\n");
+            text.append("IC serial number: ").append(getField(CPLC_IC_SERIAL_NUMBER, 4)).append("\n");
+            text.append("IC batch identifier: ").append(getField(CPLC_IC_BATCH_IDENTIFIER, 2)).append("\n");
+            text.append("IC module fabricator: ").append(getField(CPLC_IC_MODULE_FABRICATOR, 2)).append("\n");
+            text.append("IC module packaging date: ").append(getField(CPLC_IC_MODULE_PACKAGING_DATE, 2)).append("\n");
+            text.append("ICC manufacturer: ").append(getField(CPLC_ICC_MANUFACTURER, 2)).append("\n");
+            text.append("IC embedding date: ").append(getField(CPLC_IC_EMBEDDING_DATE, 2)).append("\n");
+        }
+        return text.toString();
+    }
+}
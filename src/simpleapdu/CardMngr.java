@@ -1,8 +1,25 @@
 package simpleapdu;
 
-import com.licel.jcardsim.io.CAD;
+import com.licel.jcardsim.base.SimulatorRuntime;
 import com.licel.jcardsim.io.JavaxSmartCardInterface;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import javacard.framework.AID;
 import javax.smartcardio.*;
 
@@ -14,15 +31,51 @@ public class CardMngr {
     CardTerminal m_terminal = null;
     CardChannel m_channel = null;
     Card m_card = null;
+    // true if this manager drives additional logical channel of card owned by other manager
+    boolean m_isLogicalChannel = false;
+    // number of logical channel, encoded into proprietary CLA of commands (see transmit())
+    int m_channelNumber = 0;
     
-    // Simulator related attributes
-    private static CAD m_cad = null;
-    private static JavaxSmartCardInterface m_simulator = null;
+    // Simulator related attributes (own runtime, independent of simulators of other managers)
+    private JavaxSmartCardInterface m_simulator = null;
+
+    // duration of last command transmission (nanoseconds)
+    long m_lastTransmitTime = 0;
+    // no formatting and printing of commands and responses if true
+    boolean m_quiet = false;
+    LatencyStats m_latencyStats = new LatencyStats();
+    // public keys of card key slots exported by getCardPublicKey(), encryption is done on host
+    // (keyed by getPublicKeyCacheKey(), simulator and real card have different keys)
+    private final Map<Integer, CardPublicKey> m_publicKeys = new HashMap<Integer, CardPublicKey>();
+
+    // trace of transmitted commands, null if not recording
+    ApduTrace.Recorder m_traceRecorder = null;
+
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+    // Sizes of buffers for extended length APDUs (header, 3B Lc, data, 2B Le / data, SW)
+    public static final int MAX_COMMAND_LENGTH = 4 + 3 + 65535 + 2;
+    public static final int MAX_RESPONSE_LENGTH = 65536 + 2;
+    // CardChannel.transmit(ByteBuffer, ByteBuffer) requires at least 258 free bytes in response buffer
+    public static final int RESPONSE_HEADROOM = 258;
+
+    // Preallocated buffers reused by every transmission
+    private final ByteBuffer m_commandBuffer = ByteBuffer.allocate(MAX_COMMAND_LENGTH);
+    private final ByteBuffer m_responseBuffer = ByteBuffer.allocate(MAX_RESPONSE_LENGTH + RESPONSE_HEADROOM);
+    private final ByteBuffer m_retryBuffer = ByteBuffer.allocate(MAX_COMMAND_LENGTH);
+    private final ByteBuffer m_getResponseBuffer = ByteBuffer.allocate(HEADER_LENGTH);
+
+    // Asynchronous commands are chained on m_laneTail so they are executed in submission order
+    private Executor m_laneExecutor = null;
+    private ExecutorService m_ownLaneExecutor = null;
+    private CompletableFuture<?> m_laneTail = CompletableFuture.completedFuture(null);
 
     
     private final byte selectCM[] = {
         (byte) 0x00, (byte) 0xa4, (byte) 0x04, (byte) 0x00, (byte) 0x07, (byte) 0xa0, (byte) 0x00, (byte) 0x00,
         (byte) 0x00, (byte) 0x18, (byte) 0x43, (byte) 0x4d};
+    private static final byte[] SELECT_DEFAULT = {(byte) 0x00, (byte) 0xa4, (byte) 0x04, (byte) 0x00, (byte) 0x00};
+    private static final byte[] GET_CPLC = {(byte) 0x80, (byte) 0xca, (byte) 0x9f, (byte) 0x7f, (byte) 0x00};
 
     public static final byte OFFSET_CLA = 0x00;
     public static final byte OFFSET_INS = 0x01;
@@ -43,59 +96,198 @@ public class CardMngr {
         }
 
         //List numbers of Card readers
-        boolean cardFound = false;
         for (int i = 0; i < terminalList.size(); i++) {
             System.out.println(i + " : " + terminalList.get(i));
-            m_terminal = (CardTerminal) terminalList.get(i);
-            if (m_terminal.isCardPresent()) {
-                m_card = m_terminal.connect("*");
-                System.out.println("card: " + m_card);
-                m_channel = m_card.getBasicChannel();
-
-                //reset the card
-                ATR atr = m_card.getATR();
-                System.out.println(bytesToHex(m_card.getATR().getBytes()));
-                
-                cardFound = true;
+            CardTerminal terminal = (CardTerminal) terminalList.get(i);
+            if (terminal.isCardPresent() && ConnectToCard(terminal)) {
+                return true;
             }
         }
 
-        return cardFound;
+        return false;
+    }
+
+    public boolean ConnectToCard(CardTerminal terminal) throws Exception {
+        clearPublicKeyCache();
+        m_terminal = terminal;
+        m_card = m_terminal.connect("*");
+        System.out.println("card: " + m_card);
+        m_channel = m_card.getBasicChannel();
+
+        System.out.println(bytesToHex(m_card.getATR().getBytes()));
+        return true;
+    }
+
+    /**
+     * Connects to card in every reader with card present.
+     * @return one manager per connected card, each with own channel and asynchronous lane
+     */
+    public static List<CardMngr> ConnectToAllCards() throws Exception {
+        List<CardMngr> managers = new ArrayList<CardMngr>();
+        List<?> terminalList = new CardMngr().GetReaderList();
+        if (terminalList == null) {
+            return managers;
+        }
+        for (Object reader : terminalList) {
+            CardTerminal terminal = (CardTerminal) reader;
+            if (!terminal.isCardPresent()) {
+                continue;
+            }
+            CardMngr manager = new CardMngr();
+            try {
+                manager.ConnectToCard(terminal);
+                managers.add(manager);
+            } catch (CardException ex) {
+                System.out.println("Failed to connect to " + terminal + " : " + ex);
+            }
+        }
+        return managers;
     }
 
     public void DisconnectFromCard() throws Exception {
+        clearPublicKeyCache();
+        synchronized (this) {
+            if (m_ownLaneExecutor != null) {
+                m_ownLaneExecutor.shutdown();
+                m_ownLaneExecutor = null;
+                m_laneExecutor = null;
+            }
+        }
+        if (m_isLogicalChannel) {
+            m_channel.close();
+            m_channel = null;
+            m_card = null;
+            return;
+        }
         if (m_card != null) {
             m_card.disconnect(false);
             m_card = null;
         }
     }
 
-    public byte[] GetCPLCData() throws Exception {
-        byte[] data;
+    /**
+     * Opens new logical channel (MANAGE CHANNEL) on connected card. Returned manager 
+     * has own buffers and asynchronous lane, so commands on several channels can be 
+     * interleaved. Applet has to be selected on the new channel. DisconnectFromCard() 
+     * of returned manager only closes the channel.
+     */
+    public CardMngr openLogicalChannel() throws CardException {
+        CardMngr channelManager = new CardMngr();
+        channelManager.m_terminal = m_terminal;
+        channelManager.m_card = m_card;
+        channelManager.m_channel = m_card.openLogicalChannel();
+        channelManager.m_channelNumber = channelManager.m_channel.getChannelNumber();
+        channelManager.m_isLogicalChannel = true;
+        channelManager.m_quiet = m_quiet;
+        return channelManager;
+    }
+
+    /**
+     * Opens logical channels until card refuses next one or maxChannels is reached 
+     * and selects applet on each of them.
+     * @return managers of opened channels (basic channel not included)
+     */
+    public List<CardMngr> openLogicalChannels(int maxChannels, byte[] selectAPDU) throws Exception {
+        List<CardMngr> channels = new ArrayList<CardMngr>();
+        while (channels.size() < maxChannels) {
+            CardMngr channelManager;
+            try {
+                channelManager = openLogicalChannel();
+            } catch (CardException ex) {
+                break;  // no more channels available
+            }
+            if (channelManager.sendAPDU(selectAPDU).getSW() != 0x9000) {
+                channelManager.DisconnectFromCard();
+                break;
+            }
+            channels.add(channelManager);
+        }
+        return channels;
+    }
 
-        // TODO: Modify to obtain CPLC data
-        byte apdu[] = new byte[HEADER_LENGTH];
-        apdu[OFFSET_CLA] = (byte) 0x00;
-        apdu[OFFSET_INS] = (byte) 0x00;
-        apdu[OFFSET_P1] = (byte) 0x00;
-        apdu[OFFSET_P2] = (byte) 0x00;
-        apdu[OFFSET_LC] = (byte) 0x00;
+    /**
+     * Sends command asynchronously. Commands submitted to one manager are transmitted 
+     * one by one in submission order, managers of different cards run independently. 
+     * Do not mix with synchronous calls on the same manager while commands are pending.
+     */
+    public CompletableFuture<ResponseAPDU> sendAPDUAsync(byte apdu[]) {
+        return submit(apdu, false);
+    }
 
-        ResponseAPDU resp = sendAPDU(apdu);
-        if (resp.getSW() != 0x9000) { // 0x9000 is "OK"
-            System.out.println("Fail to obtain card's response data");
-            data = null;
-        } else {
-            byte temp[] = resp.getBytes();
-            data = new byte[temp.length - 2];
-            System.arraycopy(temp, 0, data, 0, temp.length - 2);
-            // Last two bytes are status word (also obtainable by resp.getSW())
-            // Take a look at ISO7816_status_words.txt for common codes
+    public CompletableFuture<ResponseAPDU> sendAPDUSimulatorAsync(byte apdu[]) {
+        return submit(apdu, true);
+    }
+
+    /**
+     * Sets executor used to run asynchronous commands (e.g., shared pool of service). 
+     * Ordering per card is kept for any executor. By default, each manager starts 
+     * own single daemon thread on first asynchronous command.
+     */
+    public synchronized void setLaneExecutor(Executor executor) {
+        m_laneExecutor = executor;
+    }
+
+    private synchronized CompletableFuture<ResponseAPDU> submit(byte apdu[], boolean simulator) {
+        if (m_laneExecutor == null) {
+            String name = "CardMngr-" + ((m_terminal != null) ? m_terminal.getName() : "simulator");
+            m_ownLaneExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+            m_laneExecutor = m_ownLaneExecutor;
         }
+        // failure of previous command must not stop the lane
+        CompletableFuture<ResponseAPDU> result = m_laneTail.handle((ignored, ex) -> null).thenApplyAsync(ignored -> {
+            try {
+                if (simulator) {
+                    return new ResponseAPDU(sendAPDUSimulator(apdu));
+                }
+                return sendAPDU(apdu);
+            } catch (Exception ex) {
+                throw new CompletionException(ex);
+            }
+        }, m_laneExecutor);
+        m_laneTail = result;
+        return result;
+    }
 
+    /**
+     * Reads Card Production Life Cycle data (GlobalPlatform GET DATA, tag 9F7F). If currently 
+     * selected application does not answer, card manager is selected and the command is 
+     * repeated, so application must be selected again afterwards.
+     * @return CPLC value (without tag and length) or null if card does not provide it
+     */
+    public byte[] GetCPLCData() throws Exception {
+        ResponseAPDU resp = sendAPDU(GET_CPLC);
+        if (resp.getSW() != 0x9000) {
+            // card manager of older cards, default selected application (issuer security domain) otherwise
+            if (sendAPDU(selectCM).getSW() != 0x9000) {
+                sendAPDU(SELECT_DEFAULT);
+            }
+            resp = sendAPDU(GET_CPLC);
+        }
+        if (resp.getSW() != 0x9000) { // 0x9000 is "OK"
+            System.out.println("Fail to obtain CPLC data, SW " + Integer.toHexString(resp.getSW()));
+            return null;
+        }
+        byte[] data = resp.getData();
+        // some cards return whole TLV 9F7F [length] [value]
+        if ((data.length >= 3) && (data[0] == (byte) 0x9F) && (data[1] == (byte) 0x7F)) {
+            int len = data[2] & 0xff;
+            return Arrays.copyOfRange(data, 3, Math.min(data.length, 3 + len));
+        }
         return data;
     }
 
+    /**
+     * Identifies model of connected card by CPLC data, or by ATR if CPLC is not available.
+     * Reads CPLC, so application must be selected again afterwards (see GetCPLCData()).
+     */
+    public CardIdentity identifyCard() throws Exception {
+        return new CardIdentity(m_card.getATR().getBytes(), GetCPLCData());
+    }
+
     public void ProbeCardCommands() throws Exception {
         // TODO: modify to probe for instruction
         for (int i = 0; i <= 0; i++) {
@@ -128,41 +320,375 @@ public class CardMngr {
     }
 
     public ResponseAPDU sendAPDU(byte apdu[]) throws Exception {
-        CommandAPDU commandAPDU = new CommandAPDU(apdu);
+        m_commandBuffer.clear();
+        m_commandBuffer.put(apdu).flip();
+        m_responseBuffer.clear();
+        transmit(m_commandBuffer, m_responseBuffer, false);
+        return new ResponseAPDU(Arrays.copyOf(m_responseBuffer.array(), m_responseBuffer.position()));
+    }
 
-        System.out.println(">>>>");
-        System.out.println(commandAPDU);
+    /**
+     * Transmits command APDU (short or extended length) from command's position to its limit 
+     * and appends complete response data followed by final status word at response's position. 
+     * 61xx and 6Cxx are resolved by the PC/SC provider (GET RESPONSE, repeated command with 
+     * corrected Le). No objects are allocated when quiet mode is on.
+     * On logical channel, channel number is written into proprietary CLA (bit 8 set) of 
+     * command in place, CardChannel sets it only for interindustry CLA.
+     * @return final status word
+     */
+    public int transmit(ByteBuffer command, ByteBuffer response) throws Exception {
+        return transmit(command, response, false);
+    }
+
+    /**
+     * Same contract as transmit(ByteBuffer, ByteBuffer), command is sent to local simulator.
+     * Simulator returns status words as they are, so 61xx is followed by GET RESPONSE with 
+     * Le=xx (data are concatenated) and 6Cxx repeats the command with Le=xx here.
+     */
+    public int transmitSimulator(ByteBuffer command, ByteBuffer response) throws Exception {
+        return transmit(command, response, true);
+    }
+
+    /**
+     * @return preallocated cleared buffer of MAX_COMMAND_LENGTH bytes for command construction
+     */
+    public ByteBuffer getCommandBuffer() {
+        m_commandBuffer.clear();
+        return m_commandBuffer;
+    }
+
+    /**
+     * @return preallocated cleared buffer with space for longest response
+     */
+    public ByteBuffer getResponseBuffer() {
+        m_responseBuffer.clear();
+        return m_responseBuffer;
+    }
+
+    private int transmit(ByteBuffer command, ByteBuffer response, boolean simulator) throws Exception {
+        int cmdStart = command.position();
+        int cmdLen = command.remaining();
+        int respStart = response.position();
+        byte cla = command.get(cmdStart + OFFSET_CLA);
+        if (!simulator && (m_channelNumber != 0) && (cla < 0) && (cla != (byte) 0xFF)) {
+            cla = setProprietaryChannel(cla, m_channelNumber);
+            command.put(cmdStart + OFFSET_CLA, cla);
+        }
+
+        if (!m_quiet) {
+            System.out.println(">>>>");
+            System.out.println(bytesToHex(command, cmdStart, cmdLen));
+        }
 
-        System.out.println(bytesToHex(commandAPDU.getBytes()));
-        
         long elapsed = -System.nanoTime();
 
-        ResponseAPDU responseAPDU = m_channel.transmit(commandAPDU);
-        
+        int sw = transmitRaw(command, response, simulator);
+        // real readers: done by javax.smartcardio provider
+        if (simulator && (sw >> 8) == 0x6C) {
+            // Wrong Le, card indicates exact length in SW2 - repeat command once with corrected Le
+            response.position(respStart);
+            prepareRetryCommand(command, cmdStart, cmdLen, (byte) sw);
+            sw = transmitRaw(m_retryBuffer, response, simulator);
+        }
+        while (simulator && (sw >> 8) == 0x61) {
+            // More data available, SW2 is number of bytes to fetch (0 means 256)
+            response.position(response.position() - 2);
+            m_getResponseBuffer.clear();
+            m_getResponseBuffer.put((byte) (cla & 0x03)).put((byte) 0xC0).put((byte) 0x00).put((byte) 0x00).put((byte) sw);
+            m_getResponseBuffer.flip();
+            sw = transmitRaw(m_getResponseBuffer, response, simulator);
+        }
+
         elapsed += System.nanoTime();
+        m_lastTransmitTime = elapsed;
+        m_latencyStats.record(command.get(cmdStart + OFFSET_INS), elapsed);
+        if (m_traceRecorder != null) {
+            m_traceRecorder.record(command, cmdStart, cmdLen, response, respStart, response.position() - respStart, elapsed);
+        }
+
+        if (!m_quiet) {
+            System.out.println(bytesToHex(response, respStart, response.position() - respStart));
+            System.out.println("<<<<");
+            System.out.println("Elapsed time (ms): " + elapsed / 1000000.0);
+        }
+        return sw;
+    }
+
+    // proprietary CLA encodes channel in bits 1-2 only, as first interindustry CLA (channels 0-3)
+    static byte setProprietaryChannel(byte cla, int channel) throws CardException {
+        if (channel > 3) {
+            throw new CardException("Logical channel " + channel + " cannot be encoded in proprietary CLA");
+        }
+        return (byte) ((cla & 0xFC) | channel);
+    }
+
+    private int transmitRaw(ByteBuffer command, ByteBuffer response, boolean simulator) throws Exception {
+        int len;
+        if (simulator) {
+            // simulator interface works on exact arrays only
+            byte[] commandBytes = new byte[command.remaining()];
+            command.get(commandBytes);
+            byte[] responseBytes = m_simulator.transmitCommand(commandBytes);
+            response.put(responseBytes);
+            len = responseBytes.length;
+        } else {
+            len = m_channel.transmit(command, response);
+        }
+        if (len < 2) {
+            throw new CardException("Response APDU without status word");
+        }
+        int end = response.position();
+        return ((response.get(end - 2) & 0xff) << 8) | (response.get(end - 1) & 0xff);
+    }
+
+    // Copies command into m_retryBuffer with Le field replaced by le
+    private void prepareRetryCommand(ByteBuffer command, int cmdStart, int cmdLen, byte le) {
+        boolean extended = (cmdLen > HEADER_LENGTH) && (command.get(cmdStart + OFFSET_LC) == 0);
+        int leFieldLen = 0;
+        if (cmdLen == HEADER_LENGTH) {
+            leFieldLen = 1;                                     // case 2 short
+        } else if (cmdLen > HEADER_LENGTH && !extended) {
+            int lc = command.get(cmdStart + OFFSET_LC) & 0xff;
+            leFieldLen = cmdLen - HEADER_LENGTH - lc;           // case 3 (0) or 4 (1) short
+        } else if (extended && cmdLen == HEADER_LENGTH + 2) {
+            leFieldLen = 3;                                     // case 2 extended
+        } else if (extended) {
+            int lc = ((command.get(cmdStart + OFFSET_DATA) & 0xff) << 8) | (command.get(cmdStart + OFFSET_DATA + 1) & 0xff);
+            leFieldLen = cmdLen - HEADER_LENGTH - 2 - lc;       // case 3 (0) or 4 (2) extended
+        }
 
-        System.out.println(responseAPDU);
-        System.out.println(bytesToHex(responseAPDU.getBytes()));
+        int bodyLen = cmdLen - leFieldLen;                      // header, Lc and data
+        m_retryBuffer.clear();
+        for (int i = 0; i < bodyLen; i++) {
+            m_retryBuffer.put(command.get(cmdStart + i));
+        }
+        // corrected Le fits short form, command with extended Lc needs 2B Le
+        if (extended && (bodyLen > HEADER_LENGTH - 1)) {
+            m_retryBuffer.put((byte) 0x00);
+        }
+        m_retryBuffer.put(le);
+        m_retryBuffer.flip();
+    }
+
+    /**
+     * Sends several payloads in one extended length APDU (batch instruction of TestSWAlgsApplet)
+     * and returns list of results in the same order, null if command failed.
+     */
+    public List<byte[]> sendBatchAPDU(byte cla, byte ins, byte p1, byte p2, List<byte[]> items) throws Exception {
+        CommandAPDU commandAPDU = new CommandAPDU(cla, ins, p1, p2, buildBatchData(items), 65536);
+        ResponseAPDU resp = sendAPDU(commandAPDU.getBytes());
+        if (resp.getSW() != 0x9000) {
+            System.out.println("Fail to process batch command");
+            return null;
+        }
+        return parseBatchData(resp.getData());
+    }
+
+    public List<byte[]> sendBatchAPDUSimulator(byte cla, byte ins, byte p1, byte p2, List<byte[]> items) throws Exception {
+        CommandAPDU commandAPDU = new CommandAPDU(cla, ins, p1, p2, buildBatchData(items), 65536);
+        ResponseAPDU resp = new ResponseAPDU(sendAPDUSimulator(commandAPDU.getBytes()));
+        if (resp.getSW() != 0x9000) {
+            System.out.println("Fail to process batch command");
+            return null;
+        }
+        return parseBatchData(resp.getData());
+    }
+
+    /**
+     * Decrypts hybrid envelope (OAEP wrapped AES key + AES-CBC ciphertext) on card, ciphertext 
+     * is streamed in parts of chunkLen bytes (multiple of 16). Returns plaintext, null if command failed.
+     */
+    public byte[] sendEnvelope(byte cla, byte ins, byte keySlot, byte[] wrappedKey, byte[] ciphertext, int chunkLen) throws Exception {
+        return sendEnvelope(cla, ins, keySlot, wrappedKey, ciphertext, chunkLen, false);
+    }
+
+    public byte[] sendEnvelopeSimulator(byte cla, byte ins, byte keySlot, byte[] wrappedKey, byte[] ciphertext, int chunkLen) throws Exception {
+        return sendEnvelope(cla, ins, keySlot, wrappedKey, ciphertext, chunkLen, true);
+    }
+
+    private byte[] sendEnvelope(byte cla, byte ins, byte keySlot, byte[] wrappedKey, byte[] ciphertext, int chunkLen, boolean simulator) throws Exception {
+        final byte ENVELOPE_INIT = 0x01;
+        final byte ENVELOPE_UPDATE = 0x02;
+        final byte ENVELOPE_FINAL = 0x03;
+
+        ResponseAPDU resp = transmit(new CommandAPDU(cla, ins, ENVELOPE_INIT, keySlot, wrappedKey), simulator);
+        if (resp.getSW() != 0x9000) {
+            System.out.println("Fail to open envelope");
+            return null;
+        }
+        ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+        int offset = 0;
+        do {
+            int len = Math.min(chunkLen, ciphertext.length - offset);
+            byte phase = (offset + len < ciphertext.length) ? ENVELOPE_UPDATE : ENVELOPE_FINAL;
+            resp = transmit(new CommandAPDU(cla, ins, phase, 0, ciphertext, offset, len, 256), simulator);
+            if (resp.getSW() != 0x9000) {
+                System.out.println("Fail to decrypt envelope data");
+                return null;
+            }
+            plaintext.write(resp.getData());
+            offset += len;
+        } while (offset < ciphertext.length);
 
-        if (responseAPDU.getSW1() == (byte) 0x61) {
-            CommandAPDU apduToSend = new CommandAPDU((byte) 0x00,
-                    (byte) 0xC0, (byte) 0x00, (byte) 0x00,
-                    (int) responseAPDU.getSW1());
+        return plaintext.toByteArray();
+    }
 
-            responseAPDU = m_channel.transmit(apduToSend);
-            System.out.println(bytesToHex(responseAPDU.getBytes()));
+    private ResponseAPDU transmit(CommandAPDU commandAPDU, boolean simulator) throws Exception {
+        if (simulator) {
+            return new ResponseAPDU(sendAPDUSimulator(commandAPDU.getBytes()));
         }
+        return sendAPDU(commandAPDU.getBytes());
+    }
 
-        System.out.println("<<<<");
-        System.out.println("Elapsed time (ms): " + elapsed / 1000000);
-        return (responseAPDU);
+    /**
+     * Public key of card key slot together with host OAEP engine producing blocks the card decodes.
+     */
+    public static class CardPublicKey {
+        public final byte m_slot;
+        public final RSAPublicKey m_key;
+        public final HostRSAOAEP m_oaep;
+
+        CardPublicKey(byte slot, RSAPublicKey key, HostRSAOAEP oaep) {
+            m_slot = slot;
+            m_key = key;
+            m_oaep = oaep;
+        }
+
+        public byte[] encrypt(byte[] data) throws GeneralSecurityException {
+            return m_oaep.encode(data, m_key);
+        }
+    }
+
+    /**
+     * Returns public key of key slot, the key is read from card (get public key instruction 
+     * of TestSWAlgsApplet) only on first request and cached until clearPublicKeyCache().
+     */
+    public CardPublicKey getCardPublicKey(byte cla, byte ins, byte slot) throws Exception {
+        return getCardPublicKey(cla, ins, slot, false);
+    }
+
+    public CardPublicKey getCardPublicKeySimulator(byte cla, byte ins, byte slot) throws Exception {
+        return getCardPublicKey(cla, ins, slot, true);
+    }
+
+    /**
+     * Encrypts data on host for OAEP decryption by given card key slot.
+     */
+    public byte[] encryptForCard(byte cla, byte ins, byte slot, byte[] data) throws Exception {
+        return getCardPublicKey(cla, ins, slot, false).encrypt(data);
+    }
+
+    public byte[] encryptForCardSimulator(byte cla, byte ins, byte slot, byte[] data) throws Exception {
+        return getCardPublicKey(cla, ins, slot, true).encrypt(data);
+    }
+
+    /**
+     * Must be called when key of any slot changes on card (generation or import). 
+     * Called also on connect, disconnect and simulator preparation.
+     */
+    public synchronized void clearPublicKeyCache() {
+        m_publicKeys.clear();
+    }
+
+    private synchronized CardPublicKey getCardPublicKey(byte cla, byte ins, byte slot, boolean simulator) throws Exception {
+        Integer cacheKey = getPublicKeyCacheKey(slot, simulator);
+        CardPublicKey cached = m_publicKeys.get(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
+        ResponseAPDU resp = transmit(new CommandAPDU(cla, ins, 0, slot, 65536), simulator);
+        if (resp.getSW() != 0x9000) {
+            throw new CardException("Fail to read public key of slot " + slot + ", SW " + Integer.toHexString(resp.getSW()));
+        }
+        // [slot][hash algorithm][layout][modulus length (2B)][modulus][exponent length (2B)][exponent]
+        byte[] data = resp.getData();
+        int modLen = ((data[3] & 0xff) << 8) | (data[4] & 0xff);
+        BigInteger modulus = new BigInteger(1, Arrays.copyOfRange(data, 5, 5 + modLen));
+        int expOff = 5 + modLen;
+        int expLen = ((data[expOff] & 0xff) << 8) | (data[expOff + 1] & 0xff);
+        BigInteger exponent = new BigInteger(1, Arrays.copyOfRange(data, expOff + 2, expOff + 2 + expLen));
+
+        RSAPublicKey key = (RSAPublicKey) KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(modulus, exponent));
+        // layout 1 is OAEP inside PKCS1 padding, raw (0) and native (2) engines use standard OAEP
+        HostRSAOAEP oaep = new HostRSAOAEP(getHashName(data[1]), data[2] == 1, null);
+        cached = new CardPublicKey(data[0], key, oaep);
+        m_publicKeys.put(cacheKey, cached);
+        return cached;
+    }
+
+    private static Integer getPublicKeyCacheKey(byte slot, boolean simulator) {
+        return (simulator ? 0x100 : 0) | (slot & 0xff);
+    }
+
+    // JCA name of javacard.security.MessageDigest algorithm
+    static String getHashName(byte algorithm) throws GeneralSecurityException {
+        switch (algorithm) {
+            case 1: return "SHA-1";
+            case 2: return "MD5";
+            case 4: return "SHA-256";
+            case 5: return "SHA-384";
+            case 6: return "SHA-512";
+            default: throw new GeneralSecurityException("Unsupported hash algorithm " + algorithm);
+        }
+    }
+
+    // items are encoded as [length (2B)][data]
+    static byte[] buildBatchData(List<byte[]> items) {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (byte[] item : items) {
+            data.write((item.length >> 8) & 0xff);
+            data.write(item.length & 0xff);
+            data.write(item, 0, item.length);
+        }
+        return data.toByteArray();
+    }
+
+    static List<byte[]> parseBatchData(byte[] data) {
+        List<byte[]> items = new ArrayList<byte[]>();
+        int offset = 0;
+        while (offset + 2 <= data.length) {
+            int len = ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+            offset += 2;
+            items.add(Arrays.copyOfRange(data, offset, offset + len));
+            offset += len;
+        }
+        return items;
+    }
+
+    public long getLastTransmitTime() {
+        return m_lastTransmitTime;
+    }
+
+    /**
+     * Quiet mode disables formatting and printing of transmitted commands, 
+     * latency is still recorded into per-INS histograms.
+     */
+    public void setQuiet(boolean quiet) {
+        m_quiet = quiet;
+    }
+
+    public LatencyStats getLatencyStats() {
+        return m_latencyStats;
+    }
+
+    /**
+     * Starts recording of all subsequent commands, responses and timing into trace file 
+     * (see ApduTrace, replay by TraceReplay).
+     */
+    public void startTraceRecording(String fileName) throws IOException {
+        stopTraceRecording();
+        m_traceRecorder = new ApduTrace.Recorder(fileName);
+    }
+
+    public void stopTraceRecording() throws IOException {
+        if (m_traceRecorder != null) {
+            m_traceRecorder.close();
+            m_traceRecorder = null;
+        }
     }
 
     public String byteToHex(byte data) {
-        StringBuilder buf = new StringBuilder();
-        buf.append(toHexChar((data >>> 4) & 0x0F));
-        buf.append(toHexChar(data & 0x0F));
-        return buf.toString();
+        return new String(new char[]{HEX_CHARS[(data >>> 4) & 0x0F], HEX_CHARS[data & 0x0F]});
     }
 
 
@@ -175,19 +701,30 @@ public class CardMngr {
     }
 
     public String bytesToHex(byte[] data) {
-        StringBuilder buf = new StringBuilder();
+        char[] buf = new char[data.length * 3];
         for (int i = 0; i < data.length; i++) {
-            buf.append(byteToHex(data[i]));
-            buf.append(" ");
+            buf[i * 3] = HEX_CHARS[(data[i] >>> 4) & 0x0F];
+            buf[i * 3 + 1] = HEX_CHARS[data[i] & 0x0F];
+            buf[i * 3 + 2] = ' ';
+        }
+        return new String(buf);
+    }
+
+    String bytesToHex(ByteBuffer data, int offset, int length) {
+        char[] buf = new char[length * 3];
+        for (int i = 0; i < length; i++) {
+            byte b = data.get(offset + i);
+            buf[i * 3] = HEX_CHARS[(b >>> 4) & 0x0F];
+            buf[i * 3 + 1] = HEX_CHARS[b & 0x0F];
+            buf[i * 3 + 2] = ' ';
         }
-        return (buf.toString());
+        return new String(buf);
     }
     
     
     public boolean prepareLocalSimulatorApplet(byte[] appletAIDArray, byte[] installData, Class appletClass) {
-        System.setProperty("com.licel.jcardsim.terminal.type", "2");
-        m_cad = new CAD(System.getProperties());
-        m_simulator = (JavaxSmartCardInterface) m_cad.getCardInterface();
+        clearPublicKeyCache();
+        m_simulator = new JavaxSmartCardInterface(new SimulatorRuntime());
         AID appletAID = new AID(appletAIDArray, (short) 0, (byte) appletAIDArray.length);
 
         AID appletAIDRes =  m_simulator.installApplet(appletAID, appletClass, installData, (short) 0, (byte) installData.length);
@@ -195,15 +732,11 @@ public class CardMngr {
     }
     
     public byte[] sendAPDUSimulator(byte apdu[]) throws Exception {
-        System.out.println(">>>>");
-        System.out.println(bytesToHex(apdu));
-
-        byte[] responseBytes = m_simulator.transmitCommand(apdu);
-
-        System.out.println(bytesToHex(responseBytes));
-        System.out.println("<<<<");
-
-        return responseBytes;
+        m_commandBuffer.clear();
+        m_commandBuffer.put(apdu).flip();
+        m_responseBuffer.clear();
+        transmit(m_commandBuffer, m_responseBuffer, true);
+        return Arrays.copyOf(m_responseBuffer.array(), m_responseBuffer.position());
     }
     
     
@@ -0,0 +1,212 @@
+package simpleapdu;
+
+import applets.TestSWAlgsApplet;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Performance regression gate without physical card. Fixed workload of TestSWAlgsApplet
+ * commands is executed in simulator, operations of every command are read from RSAOAEP
+ * statistics and converted into predicted latency by cost profile of card (CostModel).
+ * Check fails if predicted cost of any command exceeds stored baseline by more than
+ * tolerance. Profile of card is calibrated by the same workload executed on the card.
+ *
+ * Usage: CostGate check profile baseline [tolerance_percent]
+ *        CostGate baseline profile baseline
+ *        CostGate calibrate profile_out name [passes]
+ */
+public class CostGate {
+    // install parameters of workload: slot 0 RSA 2048 with SHA-256, slot 1 RSA 1024 with SHA-1
+    // (card used for calibration must be installed with the same application data)
+    static final byte[] INSTALL_DATA = {0x00, 0x00, 0x07, 0x00, 0x08, 0x00, 0x04, 0x04, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00};
+    static final double DEFAULT_TOLERANCE = 5.0;    // percent
+    static final int DEFAULT_PASSES = 5;
+
+    private final static byte[] SELECT_TESTAPPLET = {(byte) 0x00, (byte) 0xa4, (byte) 0x04, (byte) 0x00, (byte) 0x0b,
+        (byte) 0x4C, (byte) 0x61, (byte) 0x62, (byte) 0x61, (byte) 0x6B,
+        (byte) 0x41, (byte) 0x70, (byte) 0x70, (byte) 0x6C, (byte) 0x65, (byte) 0x74};
+    private final static byte[] STATISTICS = {(byte) 0xB0, (byte) 0x61, (byte) 0x00, (byte) 0x00, (byte) 0x00};
+
+    // commands are executed in this order, decode uses data of preceding encode with the same slot
+    static final Map<String, byte[]> WORKLOAD = new LinkedHashMap<String, byte[]>();
+    static {
+        WORKLOAD.put("selftest", new byte[]{(byte) 0xB0, (byte) 0x5A, 0x00, 0x00, 0x00});
+        WORKLOAD.put("encode-s0-16", new byte[]{(byte) 0xB0, (byte) 0x5B, 0x01, 0x00, 0x02, 0x00, 0x10});
+        WORKLOAD.put("decode-s0-16", new byte[]{(byte) 0xB0, (byte) 0x5B, 0x02, 0x00, 0x02, 0x00, 0x10});
+        WORKLOAD.put("encode-s0-180", new byte[]{(byte) 0xB0, (byte) 0x5B, 0x01, 0x00, 0x02, 0x00, (byte) 0xB4});
+        WORKLOAD.put("decode-s0-180", new byte[]{(byte) 0xB0, (byte) 0x5B, 0x02, 0x00, 0x02, 0x00, (byte) 0xB4});
+        WORKLOAD.put("encode-s0-16x10", new byte[]{(byte) 0xB0, (byte) 0x5B, 0x01, 0x00, 0x06, 0x00, 0x10, 0x00, 0x0A, 0x00, 0x00});
+        WORKLOAD.put("refill-s0-1", new byte[]{(byte) 0xB0, (byte) 0x5D, 0x01, 0x00, 0x00});
+        WORKLOAD.put("encode-pooled-s0-16", new byte[]{(byte) 0xB0, (byte) 0x5B, 0x01, 0x00, 0x02, 0x00, 0x10});
+        WORKLOAD.put("refill-s0-all", new byte[]{(byte) 0xB0, (byte) 0x5D, 0x00, 0x00, 0x00});
+        WORKLOAD.put("encode-s1-16", new byte[]{(byte) 0xB0, (byte) 0x5B, 0x01, 0x01, 0x02, 0x00, 0x10});
+        WORKLOAD.put("decode-s1-16", new byte[]{(byte) 0xB0, (byte) 0x5B, 0x02, 0x01, 0x02, 0x00, 0x10});
+        WORKLOAD.put("encode-s1-76", new byte[]{(byte) 0xB0, (byte) 0x5B, 0x01, 0x01, 0x02, 0x00, 0x4C});
+        WORKLOAD.put("decode-s1-76", new byte[]{(byte) 0xB0, (byte) 0x5B, 0x02, 0x01, 0x02, 0x00, 0x4C});
+        WORKLOAD.put("refill-s1-1", new byte[]{(byte) 0xB0, (byte) 0x5D, 0x01, 0x01, 0x00});
+    }
+
+    private final CardMngr m_cardManager;
+    private final boolean m_simulator;
+
+    public CostGate(CardMngr cardManager, boolean simulator) {
+        m_cardManager = cardManager;
+        m_simulator = simulator;
+    }
+
+    private ResponseAPDU send(byte[] apdu) throws Exception {
+        return m_simulator ? new ResponseAPDU(m_cardManager.sendAPDUSimulator(apdu)) : m_cardManager.sendAPDU(apdu);
+    }
+
+    /**
+     * Executes the workload once.
+     * @param elapsedMillis if not null, measured latency of every command is added
+     * @return operations of every command in WORKLOAD order
+     */
+    public List<CostModel.Counts> runWorkload(List<Double> elapsedMillis) throws Exception {
+        List<CostModel.Counts> counts = new ArrayList<CostModel.Counts>();
+        // reset counters
+        send(STATISTICS);
+        for (Map.Entry<String, byte[]> command : WORKLOAD.entrySet()) {
+            ResponseAPDU resp = send(command.getValue());
+            if (resp.getSW() != 0x9000) {
+                throw new IllegalStateException("Command " + command.getKey() + " failed with " + Integer.toHexString(resp.getSW()));
+            }
+            if (elapsedMillis != null) {
+                elapsedMillis.add(m_cardManager.getLastTransmitTime() / 1000000.0);
+            }
+            ResponseAPDU stats = send(STATISTICS);
+            if (stats.getSW() != 0x9000) {
+                throw new IllegalStateException("Failed to read statistics, " + Integer.toHexString(stats.getSW()));
+            }
+            CostModel.Counts commandCounts = CostModel.Counts.fromStatistics(stats.getData());
+            commandCounts.addCommand(command.getValue().length, resp.getBytes().length);
+            counts.add(commandCounts);
+        }
+        return counts;
+    }
+
+    /**
+     * Compares predicted cost of workload commands with baseline and prints report.
+     * @return number of commands with predicted cost over baseline + tolerance
+     */
+    public static int check(CostModel model, List<CostModel.Counts> counts, Properties baseline, double tolerancePercent) {
+        System.out.println("Predicted cost with profile " + model.getName() + ", tolerance " + tolerancePercent + "%");
+        System.out.println("command;baseline_ms;predicted_ms;change_percent;result");
+        int regressions = 0;
+        int i = 0;
+        for (String name : WORKLOAD.keySet()) {
+            double predicted = model.estimate(counts.get(i++));
+            String stored = baseline.getProperty(name);
+            if (stored == null) {
+                System.out.println(String.format(Locale.ROOT, "%s;;%.3f;;NEW", name, predicted));
+                continue;
+            }
+            double expected = Double.parseDouble(stored.trim());
+            double change = (expected > 0) ? (predicted - expected) * 100 / expected : 0;
+            String result = "OK";
+            if (predicted > expected * (1 + tolerancePercent / 100)) {
+                result = "REGRESSION";
+                regressions++;
+            } else if (predicted < expected * (1 - tolerancePercent / 100)) {
+                result = "IMPROVED (update baseline)";
+            }
+            System.out.println(String.format(Locale.ROOT, "%s;%.3f;%.3f;%+.1f;%s", name, expected, predicted, change, result));
+        }
+        return regressions;
+    }
+
+    static void writeBaseline(String fileName, CostModel model, List<CostModel.Counts> counts) throws IOException {
+        Writer out = new FileWriter(fileName);
+        try {
+            out.write("# Predicted cost (ms) of CostGate workload with profile " + model.getName() + "\n");
+            int i = 0;
+            for (String name : WORKLOAD.keySet()) {
+                out.write(String.format(Locale.ROOT, "%s=%.3f\n", name, model.estimate(counts.get(i++))));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static CardMngr prepareSimulator() {
+        CardMngr cardManager = new CardMngr();
+        cardManager.setQuiet(true);
+        if (!cardManager.prepareLocalSimulatorApplet(SimpleAPDU.APPLET_AID, INSTALL_DATA, TestSWAlgsApplet.class)) {
+            throw new IllegalStateException("Applet not selected in simulator");
+        }
+        return cardManager;
+    }
+
+    static void calibrate(String profileFile, String name, int passes) throws Exception {
+        CardMngr cardManager = new CardMngr();
+        if (!cardManager.ConnectToCard()) {
+            throw new IllegalStateException("Failed to connect to card");
+        }
+        try {
+            cardManager.setQuiet(true);
+            cardManager.sendAPDU(SELECT_TESTAPPLET);
+            CostGate gate = new CostGate(cardManager, false);
+
+            // every executed command is one sample, state of pools differs between passes
+            List<CostModel.Counts> counts = new ArrayList<CostModel.Counts>();
+            List<Double> measured = new ArrayList<Double>();
+            for (int pass = 0; pass < passes; pass++) {
+                counts.addAll(gate.runWorkload(measured));
+            }
+            CostModel model = CostModel.calibrate(name, CostModel.DEFAULT_RSA_BITS, counts, measured);
+            model.save(profileFile);
+
+            System.out.println("command;measured_ms;estimated_ms");
+            List<String> names = new ArrayList<String>(WORKLOAD.keySet());
+            for (int i = 0; i < counts.size(); i++) {
+                System.out.println(String.format(Locale.ROOT, "%s;%.3f;%.3f", names.get(i % names.size()), measured.get(i), model.estimate(counts.get(i))));
+            }
+        } finally {
+            cardManager.DisconnectFromCard();
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.out.println("Usage: CostGate check profile baseline [tolerance_percent]");
+            System.out.println("       CostGate baseline profile baseline");
+            System.out.println("       CostGate calibrate profile_out name [passes]");
+            System.exit(2);
+        }
+        try {
+            if (args[0].equals("calibrate")) {
+                calibrate(args[1], args[2], (args.length > 3) ? Integer.parseInt(args[3]) : DEFAULT_PASSES);
+                return;
+            }
+
+            CostModel model = CostModel.load(args[1]);
+            List<CostModel.Counts> counts = new CostGate(prepareSimulator(), true).runWorkload(null);
+            if (args[0].equals("baseline")) {
+                writeBaseline(args[2], model, counts);
+                System.out.println("Baseline written to " + args[2]);
+            } else if (args[0].equals("check")) {
+                double tolerance = (args.length > 3) ? Double.parseDouble(args[3]) : DEFAULT_TOLERANCE;
+                int regressions = check(model, counts, CostModel.loadProperties(args[2]), tolerance);
+                if (regressions > 0) {
+                    System.out.println(regressions + " command(s) over baseline");
+                    System.exit(1);
+                }
+            } else {
+                System.out.println("Unknown mode " + args[0]);
+                System.exit(2);
+            }
+        } catch (Exception ex) {
+            System.out.println("Exception : " + ex);
+            System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package simpleapdu;
+
+import applets.RSAOAEP;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Linear cost model of card, estimates latency of command from operations counted by
+ * RSAOAEP statistics (INS_TEST_RSAOAEP_STATS) and transferred APDU bytes. Profile of card
+ * is a properties file with cost in milliseconds of every counted feature:
+ * apdu.command, apdu.byte, rsa.public, rsa.private (operation with rsa.bits long modulus,
+ * other lengths are scaled by power of 2 for public and 3 for private operation),
+ * hash.&lt;algorithm&gt; (one compression function call), write.transient, write.persistent
+ * (one byte) and loop.iteration (one iteration of bytecode loop over data).
+ */
+public class CostModel {
+    // names of hash algorithms indexed by MessageDigest.ALG_*
+    static final String[] HASH_NAMES = {null, "SHA-1", "MD5", "RIPEMD-160", "SHA-256", "SHA-384", "SHA-512"};
+    static final String[] FEATURES = {"apdu.command", "apdu.byte", "rsa.public", "rsa.private",
+        "hash.SHA-1", "hash.MD5", "hash.RIPEMD-160", "hash.SHA-256", "hash.SHA-384", "hash.SHA-512",
+        "write.transient", "write.persistent", "loop.iteration"};
+    static final String NAME = "name";
+    static final String RSA_BITS = "rsa.bits";
+    static final int DEFAULT_RSA_BITS = 2048;
+
+    private static final int CALIBRATION_ITERATIONS = 10000;
+
+    private final Properties m_profile;
+
+    /**
+     * Operations performed by card for one or more commands.
+     */
+    public static class Counts {
+        long m_commands;
+        long m_apduBytes;
+        long m_rsaPublicOps;
+        long m_rsaPublicBytes;
+        long m_rsaPrivateOps;
+        long m_rsaPrivateBytes;
+        final long[] m_hashCompressions = new long[HASH_NAMES.length];
+        long m_transientBytes;
+        long m_persistentBytes;
+        long m_loopIterations;
+
+        /**
+         * Parses counters returned by INS_TEST_RSAOAEP_STATS (RSAOAEP.STATS_LENGTH bytes).
+         * RSA operations of encode are public key operations, of decode private key operations.
+         */
+        public static Counts fromStatistics(byte[] stats) {
+            if (stats.length < RSAOAEP.STATS_LENGTH) {
+                throw new IllegalArgumentException("Statistics too short: " + stats.length + "B");
+            }
+            Counts counts = new Counts();
+            counts.m_rsaPublicOps = SimpleAPDU.getInt(stats, RSAOAEP.STATS_ENCODE + RSAOAEP.STAT_RSA_OPS);
+            counts.m_rsaPublicBytes = SimpleAPDU.getInt(stats, RSAOAEP.STATS_ENCODE + RSAOAEP.STAT_RSA_BYTES);
+            counts.m_rsaPrivateOps = SimpleAPDU.getInt(stats, RSAOAEP.STATS_DECODE + RSAOAEP.STAT_RSA_OPS);
+            counts.m_rsaPrivateBytes = SimpleAPDU.getInt(stats, RSAOAEP.STATS_DECODE + RSAOAEP.STAT_RSA_BYTES);
+            for (int group : new int[]{RSAOAEP.STATS_ENCODE, RSAOAEP.STATS_DECODE, RSAOAEP.STATS_PRECOMPUTE}) {
+                long persistent = SimpleAPDU.getInt(stats, group + RSAOAEP.STAT_PERSISTENT_BYTES);
+                counts.m_transientBytes += SimpleAPDU.getInt(stats, group + RSAOAEP.STAT_COPY_BYTES) - persistent;
+                counts.m_persistentBytes += persistent;
+                counts.m_loopIterations += SimpleAPDU.getInt(stats, group + RSAOAEP.STAT_LOOP_ITERATIONS);
+            }
+            for (int alg = 1; alg < HASH_NAMES.length; alg++) {
+                counts.m_hashCompressions[alg] = SimpleAPDU.getInt(stats, RSAOAEP.STATS_HASH + 4 * alg);
+            }
+            return counts;
+        }
+
+        public void addCommand(int commandLength, int responseLength) {
+            m_commands++;
+            m_apduBytes += commandLength + responseLength;
+        }
+
+        public void add(Counts other) {
+            m_commands += other.m_commands;
+            m_apduBytes += other.m_apduBytes;
+            m_rsaPublicOps += other.m_rsaPublicOps;
+            m_rsaPublicBytes += other.m_rsaPublicBytes;
+            m_rsaPrivateOps += other.m_rsaPrivateOps;
+            m_rsaPrivateBytes += other.m_rsaPrivateBytes;
+            for (int alg = 1; alg < HASH_NAMES.length; alg++) {
+                m_hashCompressions[alg] += other.m_hashCompressions[alg];
+            }
+            m_transientBytes += other.m_transientBytes;
+            m_persistentBytes += other.m_persistentBytes;
+            m_loopIterations += other.m_loopIterations;
+        }
+
+        /**
+         * @return amount of every feature (FEATURES order), RSA operations scaled to rsaBits long modulus
+         */
+        double[] getFeatures(int rsaBits) {
+            double[] features = new double[FEATURES.length];
+            features[0] = m_commands;
+            features[1] = m_apduBytes;
+            features[2] = scaleRSA(m_rsaPublicOps, m_rsaPublicBytes, rsaBits, 2);
+            features[3] = scaleRSA(m_rsaPrivateOps, m_rsaPrivateBytes, rsaBits, 3);
+            for (int alg = 1; alg < HASH_NAMES.length; alg++) {
+                features[3 + alg] = m_hashCompressions[alg];
+            }
+            features[10] = m_transientBytes;
+            features[11] = m_persistentBytes;
+            features[12] = m_loopIterations;
+            return features;
+        }
+
+        // counters have only sum of modulus lengths, operations are assumed to use the average length
+        private static double scaleRSA(long ops, long modulusBytes, int rsaBits, int exponent) {
+            if (ops == 0) {
+                return 0;
+            }
+            return ops * Math.pow(8.0 * modulusBytes / ops / rsaBits, exponent);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append("commands ").append(m_commands).append(", APDU bytes ").append(m_apduBytes);
+            text.append(", RSA public ").append(m_rsaPublicOps).append(", RSA private ").append(m_rsaPrivateOps);
+            for (int alg = 1; alg < HASH_NAMES.length; alg++) {
+                if (m_hashCompressions[alg] != 0) {
+                    text.append(", ").append(HASH_NAMES[alg]).append(" compressions ").append(m_hashCompressions[alg]);
+                }
+            }
+            text.append(", transient bytes ").append(m_transientBytes).append(", persistent bytes ").append(m_persistentBytes);
+            text.append(", loop iterations ").append(m_loopIterations);
+            return text.toString();
+        }
+    }
+
+    public CostModel(Properties profile) {
+        m_profile = profile;
+    }
+
+    public static CostModel load(String fileName) throws IOException {
+        return new CostModel(loadProperties(fileName));
+    }
+
+    static Properties loadProperties(String fileName) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(fileName);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    public void save(String fileName) throws IOException {
+        Writer out = new FileWriter(fileName);
+        try {
+            out.write("# Cost profile of card, milliseconds per operation (see simpleapdu.CostModel)\n");
+            out.write(NAME + "=" + getName() + "\n");
+            out.write(RSA_BITS + "=" + getRSABits() + "\n");
+            for (String feature : FEATURES) {
+                String cost = m_profile.getProperty(feature);
+                if (cost != null) {
+                    out.write(feature + "=" + cost + "\n");
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public String getName() {
+        return m_profile.getProperty(NAME, "unnamed");
+    }
+
+    public int getRSABits() {
+        return Integer.parseInt(m_profile.getProperty(RSA_BITS, Integer.toString(DEFAULT_RSA_BITS)).trim());
+    }
+
+    /**
+     * @return estimated milliseconds of every feature present in counts
+     * @throws IllegalStateException if profile has no cost for feature present in counts
+     */
+    public Map<String, Double> getBreakdown(Counts counts) {
+        double[] features = counts.getFeatures(getRSABits());
+        Map<String, Double> breakdown = new LinkedHashMap<String, Double>();
+        for (int i = 0; i < FEATURES.length; i++) {
+            if (features[i] == 0) {
+                continue;
+            }
+            String cost = m_profile.getProperty(FEATURES[i]);
+            if (cost == null) {
+                throw new IllegalStateException("Profile " + getName() + " has no cost of " + FEATURES[i]);
+            }
+            breakdown.put(FEATURES[i], features[i] * Double.parseDouble(cost.trim()));
+        }
+        return breakdown;
+    }
+
+    /**
+     * @return estimated milliseconds on card of this profile
+     */
+    public double estimate(Counts counts) {
+        double total = 0;
+        for (double cost : getBreakdown(counts).values()) {
+            total += cost;
+        }
+        return total;
+    }
+
+    /**
+     * Fits profile to latencies measured on card. Costs are non-negative least squares
+     * solution minimizing relative error of estimates. Only features present in some
+     * of samples get cost, workload should vary them independently (e.g., data lengths,
+     * key slots with different key lengths and hashes, pool refill).
+     * @param counts operations of every measured command
+     * @param measuredMillis measured latency of every command
+     */
+    public static CostModel calibrate(String name, int rsaBits, List<Counts> counts, List<Double> measuredMillis) {
+        int samples = counts.size();
+        double[][] x = new double[samples][];
+        double[] y = new double[samples];
+        for (int i = 0; i < samples; i++) {
+            double measured = measuredMillis.get(i);
+            if (measured <= 0) {
+                throw new IllegalArgumentException("Measured latency must be positive");
+            }
+            x[i] = counts.get(i).getFeatures(rsaBits);
+            // relative error: every row is divided by its measured latency
+            for (int j = 0; j < FEATURES.length; j++) {
+                x[i][j] /= measured;
+            }
+            y[i] = 1;
+        }
+
+        // coordinate descent, residual is kept updated
+        double[] costs = new double[FEATURES.length];
+        double[] residual = y.clone();
+        double[] columnNorm = new double[FEATURES.length];
+        for (int j = 0; j < FEATURES.length; j++) {
+            for (int i = 0; i < samples; i++) {
+                columnNorm[j] += x[i][j] * x[i][j];
+            }
+        }
+        for (int iteration = 0; iteration < CALIBRATION_ITERATIONS; iteration++) {
+            double maxChange = 0;
+            for (int j = 0; j < FEATURES.length; j++) {
+                if (columnNorm[j] == 0) {
+                    continue;
+                }
+                double gradient = 0;
+                for (int i = 0; i < samples; i++) {
+                    gradient += x[i][j] * residual[i];
+                }
+                double delta = Math.max(0, costs[j] + gradient / columnNorm[j]) - costs[j];
+                if (delta != 0) {
+                    for (int i = 0; i < samples; i++) {
+                        residual[i] -= delta * x[i][j];
+                    }
+                    costs[j] += delta;
+                    maxChange = Math.max(maxChange, Math.abs(delta) * Math.sqrt(columnNorm[j]));
+                }
+            }
+            if (maxChange < 1e-12) {
+                break;
+            }
+        }
+
+        Properties profile = new Properties();
+        profile.setProperty(NAME, name);
+        profile.setProperty(RSA_BITS, Integer.toString(rsaBits));
+        for (int j = 0; j < FEATURES.length; j++) {
+            if (columnNorm[j] != 0) {
+                profile.setProperty(FEATURES[j], String.format(Locale.ROOT, "%.6g", costs[j]));
+            }
+        }
+        return new CostModel(profile);
+    }
+}
@@ -0,0 +1,288 @@
+package simpleapdu;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+
+/**
+ * Host implementation of OAEP encoding byte compatible with applets.RSAOAEP, for both
+ * layouts of the applet: standard OAEP over raw RSA (RSAOAEP with ALG_RSA_NOPAD engine)
+ * and OAEP block of (k - 11) bytes wrapped into PKCS#1 v1.5 padding (ALG_RSA_PKCS1 engine).
+ * Native ALG_RSA_PKCS1_OAEP engine of the card produces the same blocks as raw RSA layout.
+ * Instance can be shared by any number of threads, hash and RSA engines are kept per thread.
+ */
+public class HostRSAOAEP {
+    private static final int PKCS1_OVERHEAD = 11;
+    private static final int BATCH_GRANULARITY = 16;   // operations per fork-join task
+
+    private final String m_hashAlgorithm;
+    private final boolean m_pkcs1Wrapped;
+    private final byte[] m_defHash;
+    private final SecureRandom m_random;
+    private final ThreadLocal<Engines> m_engines;
+
+    // per thread engines and buffers
+    private class Engines {
+        final MessageDigest m_hash;
+        final Cipher m_rsa;
+        final byte[] m_counter = new byte[4];
+        final byte[] m_mask;
+
+        Engines() throws GeneralSecurityException {
+            m_hash = MessageDigest.getInstance(m_hashAlgorithm);
+            m_rsa = Cipher.getInstance(m_pkcs1Wrapped ? "RSA/ECB/PKCS1Padding" : "RSA/ECB/NoPadding");
+            m_mask = new byte[m_hash.getDigestLength()];
+        }
+    }
+
+    /**
+     * @param hashAlgorithm JCA name of hash used by applet (e.g., "SHA-256")
+     * @param pkcs1Wrapped true if card uses RSAOAEP with ALG_RSA_PKCS1 engine, false for ALG_RSA_NOPAD
+     * @param encodingParams optional encoding parameters (may be null), as passed to RSAOAEP.getInstance()
+     */
+    public HostRSAOAEP(String hashAlgorithm, boolean pkcs1Wrapped, byte[] encodingParams) throws GeneralSecurityException {
+        m_hashAlgorithm = hashAlgorithm;
+        m_pkcs1Wrapped = pkcs1Wrapped;
+        MessageDigest hash = MessageDigest.getInstance(hashAlgorithm);
+        m_defHash = hash.digest((encodingParams != null) ? encodingParams : new byte[0]);
+        m_random = new SecureRandom();
+        m_engines = ThreadLocal.withInitial(() -> {
+            try {
+                return new Engines();
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+    }
+
+    /**
+     * @return maximum message length for given key
+     */
+    public int getMaxInputLength(RSAPublicKey key) {
+        return getEmLength(getBlockLength(key)) - 2 * m_defHash.length - 1;
+    }
+
+    public byte[] encode(byte[] message, RSAPublicKey key) throws GeneralSecurityException {
+        byte[] seed = new byte[m_defHash.length];
+        m_random.nextBytes(seed);
+        return encode(message, seed, key);
+    }
+
+    /**
+     * Encodes message with given seed (deterministic, e.g., for test vectors).
+     */
+    public byte[] encode(byte[] message, byte[] seed, RSAPublicKey key) throws GeneralSecurityException {
+        Engines engines = m_engines.get();
+        byte[] block = encodeBlock(engines, message, seed, getBlockLength(key));
+        engines.m_rsa.init(Cipher.ENCRYPT_MODE, key, m_random);
+        return engines.m_rsa.doFinal(block);
+    }
+
+    /**
+     * @throws BadPaddingException if block is not valid OAEP encoding (applet fails with OAEP_DECODE_FAIL)
+     */
+    public byte[] decode(byte[] ciphertext, RSAPrivateKey key) throws GeneralSecurityException {
+        Engines engines = m_engines.get();
+        engines.m_rsa.init(Cipher.DECRYPT_MODE, key);
+        byte[] block = engines.m_rsa.doFinal(ciphertext);
+        int blockLength = (key.getModulus().bitLength() + 7) / 8;
+        if (m_pkcs1Wrapped) {
+            blockLength -= PKCS1_OVERHEAD;
+        } else if (block.length < blockLength) {
+            // raw RSA result without leading zero bytes
+            byte[] aligned = new byte[blockLength];
+            System.arraycopy(block, 0, aligned, blockLength - block.length, block.length);
+            block = aligned;
+        }
+        return decodeBlock(engines, block, blockLength);
+    }
+
+    /**
+     * Encodes all messages in parallel on given pool, results are in the same order.
+     */
+    public List<byte[]> encodeAll(List<byte[]> messages, RSAPublicKey key, ForkJoinPool pool) throws GeneralSecurityException {
+        byte[][] results = new byte[messages.size()][];
+        runBatch(pool, messages.size(), index -> results[index] = encode(messages.get(index), key));
+        return toList(results);
+    }
+
+    /**
+     * Decodes all ciphertexts in parallel on given pool, results are in the same order.
+     * @throws BadPaddingException if any of ciphertexts is invalid
+     */
+    public List<byte[]> decodeAll(List<byte[]> ciphertexts, RSAPrivateKey key, ForkJoinPool pool) throws GeneralSecurityException {
+        byte[][] results = new byte[ciphertexts.size()][];
+        runBatch(pool, ciphertexts.size(), index -> results[index] = decode(ciphertexts.get(index), key));
+        return toList(results);
+    }
+
+    // length of block processed by RSA engine
+    private int getBlockLength(RSAPublicKey key) {
+        int blockLength = (key.getModulus().bitLength() + 7) / 8;
+        return m_pkcs1Wrapped ? blockLength - PKCS1_OVERHEAD : blockLength;
+    }
+
+    // length of OAEP encoded message inside block (raw RSA block starts with zero byte)
+    private int getEmLength(int blockLength) {
+        return m_pkcs1Wrapped ? blockLength : blockLength - 1;
+    }
+
+    byte[] encodeBlock(Engines engines, byte[] message, byte[] seed, int blockLength) throws GeneralSecurityException {
+        int hashLen = m_defHash.length;
+        int emLength = getEmLength(blockLength);
+        int emOff = blockLength - emLength;
+        if (message.length > emLength - 2 * hashLen - 1) {
+            throw new IllegalArgumentException("Message too long");
+        }
+        if (seed.length != hashLen) {
+            throw new IllegalArgumentException("Seed must have hash length");
+        }
+
+        // [0x00 (raw RSA only)][seed][lHash][PS of zeroes][0x01][message]
+        byte[] block = new byte[blockLength];
+        System.arraycopy(seed, 0, block, emOff, hashLen);
+        System.arraycopy(m_defHash, 0, block, emOff + hashLen, hashLen);
+        block[blockLength - message.length - 1] = 0x01;
+        System.arraycopy(message, 0, block, blockLength - message.length, message.length);
+
+        maskGeneratorFunction1(engines, block, emOff, hashLen, block, emOff + hashLen, emLength - hashLen);
+        maskGeneratorFunction1(engines, block, emOff + hashLen, emLength - hashLen, block, emOff, hashLen);
+        return block;
+    }
+
+    byte[] decodeBlock(Engines engines, byte[] block, int blockLength) throws GeneralSecurityException {
+        int hashLen = m_defHash.length;
+        int emLength = getEmLength(blockLength);
+        int emOff = blockLength - emLength;
+        if (block.length != blockLength || emLength < 2 * hashLen + 1) {
+            throw new BadPaddingException("OAEP decoding failed");
+        }
+        int leadingByte = (emOff > 0) ? block[0] : 0;
+
+        maskGeneratorFunction1(engines, block, emOff + hashLen, emLength - hashLen, block, emOff, hashLen);
+        maskGeneratorFunction1(engines, block, emOff, hashLen, block, emOff + hashLen, emLength - hashLen);
+
+        // leading byte and hash are checked together, so both failures look the same
+        int diff = leadingByte;
+        for (int i = 0; i < hashLen; i++) {
+            diff |= m_defHash[i] ^ block[emOff + hashLen + i];
+        }
+        if (diff != 0) {
+            throw new BadPaddingException("OAEP decoding failed");
+        }
+
+        int start = emOff + 2 * hashLen;
+        while (start < blockLength && block[start] == 0) {
+            start++;
+        }
+        // same as applet, empty message is rejected
+        if (start >= blockLength - 1 || block[start] != 0x01) {
+            throw new BadPaddingException("OAEP decoding failed");
+        }
+        start++;
+
+        byte[] message = new byte[blockLength - start];
+        System.arraycopy(block, start, message, 0, message.length);
+        return message;
+    }
+
+    // MGF1 of Z[zOff..zOff+zLen) xored into bufferToMask
+    private void maskGeneratorFunction1(Engines engines, byte[] Z, int zOff, int zLen, byte[] bufferToMask, int maskOff, int length) throws GeneralSecurityException {
+        MessageDigest hash = engines.m_hash;
+        byte[] counter = engines.m_counter;
+        byte[] mask = engines.m_mask;
+        for (int i = 0; i < counter.length; i++) {
+            counter[i] = 0;
+        }
+        int hashLen = mask.length;
+        while (length > 0) {
+            hash.update(Z, zOff, zLen);
+            hash.update(counter);
+            hash.digest(mask, 0, hashLen);
+
+            int maskLen = Math.min(length, hashLen);
+            for (int i = 0; i < maskLen; i++) {
+                bufferToMask[maskOff + i] ^= mask[i];
+            }
+            maskOff += maskLen;
+            length -= maskLen;
+            counter[3]++;
+        }
+    }
+
+    private interface BatchOperation {
+        void run(int index) throws GeneralSecurityException;
+    }
+
+    private static void runBatch(ForkJoinPool pool, int count, BatchOperation operation) throws GeneralSecurityException {
+        try {
+            pool.submit(new BatchTask(operation, 0, count)).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new GeneralSecurityException("Batch interrupted", ex);
+        } catch (ExecutionException ex) {
+            // fork-join may rethrow copy of the exception, original is in the cause chain
+            for (Throwable cause = ex.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof GeneralSecurityException) {
+                    throw (GeneralSecurityException) cause;
+                }
+            }
+            throw new GeneralSecurityException("Batch failed", ex.getCause());
+        }
+    }
+
+    private static class BatchFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        BatchFailure(GeneralSecurityException cause) {
+            super(cause);
+        }
+    }
+
+    private static class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final BatchOperation m_operation;
+        final int m_from;
+        final int m_to;
+
+        BatchTask(BatchOperation operation, int from, int to) {
+            m_operation = operation;
+            m_from = from;
+            m_to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (m_to - m_from <= BATCH_GRANULARITY) {
+                try {
+                    for (int i = m_from; i < m_to; i++) {
+                        m_operation.run(i);
+                    }
+                } catch (GeneralSecurityException ex) {
+                    throw new BatchFailure(ex);
+                }
+                return;
+            }
+            int middle = (m_from + m_to) >>> 1;
+            invokeAll(new BatchTask(m_operation, m_from, middle), new BatchTask(m_operation, middle, m_to));
+        }
+    }
+
+    private static List<byte[]> toList(byte[][] results) {
+        List<byte[]> list = new ArrayList<byte[]>(results.length);
+        for (byte[] result : results) {
+            list.add(result);
+        }
+        return list;
+    }
+}
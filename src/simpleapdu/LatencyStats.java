@@ -0,0 +1,182 @@
+package simpleapdu;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Per-INS latency histograms of transmitted commands. Recording is allocation
+ * free (log-linear buckets with ~3% resolution), percentiles are computed on export.
+ */
+public class LatencyStats {
+    private final Histogram[] m_histograms = new Histogram[256];
+
+    public synchronized void record(byte ins, long elapsedNanos) {
+        Histogram histogram = m_histograms[ins & 0xff];
+        if (histogram == null) {
+            histogram = new Histogram();
+            m_histograms[ins & 0xff] = histogram;
+        }
+        histogram.record(elapsedNanos);
+    }
+
+    public synchronized Histogram getHistogram(byte ins) {
+        return m_histograms[ins & 0xff];
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < m_histograms.length; i++) {
+            m_histograms[i] = null;
+        }
+    }
+
+    public synchronized String toCSV() {
+        StringBuilder csv = new StringBuilder();
+        csv.append("ins;count;min_us;p50_us;p90_us;p99_us;max_us;mean_us;ops_per_sec\n");
+        for (int i = 0; i < m_histograms.length; i++) {
+            Histogram h = m_histograms[i];
+            if (h == null) {
+                continue;
+            }
+            csv.append(String.format(Locale.ROOT, "%02x;%d;%.3f;%.3f;%.3f;%.3f;%.3f;%.3f;%.2f\n", i, h.getCount(),
+                    h.getMin() / 1000.0, h.getPercentile(50) / 1000.0, h.getPercentile(90) / 1000.0,
+                    h.getPercentile(99) / 1000.0, h.getMax() / 1000.0, h.getMean() / 1000.0, h.getThroughput()));
+        }
+        return csv.toString();
+    }
+
+    public synchronized String toJSON() {
+        StringBuilder json = new StringBuilder();
+        json.append("[");
+        boolean first = true;
+        for (int i = 0; i < m_histograms.length; i++) {
+            Histogram h = m_histograms[i];
+            if (h == null) {
+                continue;
+            }
+            if (!first) {
+                json.append(",");
+            }
+            first = false;
+            json.append(String.format(Locale.ROOT, "\n  {\"ins\": \"%02x\", \"count\": %d, \"min_us\": %.3f, \"p50_us\": %.3f, \"p90_us\": %.3f, "
+                    + "\"p99_us\": %.3f, \"max_us\": %.3f, \"mean_us\": %.3f, \"ops_per_sec\": %.2f}", i, h.getCount(),
+                    h.getMin() / 1000.0, h.getPercentile(50) / 1000.0, h.getPercentile(90) / 1000.0,
+                    h.getPercentile(99) / 1000.0, h.getMax() / 1000.0, h.getMean() / 1000.0, h.getThroughput()));
+        }
+        json.append("\n]\n");
+        return json.toString();
+    }
+
+    public void writeCSV(String fileName) throws IOException {
+        write(fileName, toCSV());
+    }
+
+    public void writeJSON(String fileName) throws IOException {
+        write(fileName, toJSON());
+    }
+
+    private static void write(String fileName, String content) throws IOException {
+        Writer writer = new FileWriter(fileName);
+        try {
+            writer.write(content);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Histogram of durations in nanoseconds. Values below 64 are kept exactly,
+     * every further power of two is split into 32 buckets.
+     */
+    public static class Histogram {
+        private static final int SUB_BUCKET_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+        private static final int NUM_BUCKETS = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+        private final long[] m_counts = new long[NUM_BUCKETS];
+        private long m_count = 0;
+        private long m_sum = 0;
+        private long m_min = Long.MAX_VALUE;
+        private long m_max = 0;
+        private long m_firstRecordTime = 0;
+        private long m_lastRecordTime = 0;
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            m_counts[bucketIndex(value)]++;
+            if (m_count == 0) {
+                m_firstRecordTime = System.nanoTime() - value;
+            }
+            m_lastRecordTime = System.nanoTime();
+            m_count++;
+            m_sum += value;
+            m_min = Math.min(m_min, value);
+            m_max = Math.max(m_max, value);
+        }
+
+        static int bucketIndex(long value) {
+            if (value < LINEAR_LIMIT) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int mantissa = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+            return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + mantissa;
+        }
+
+        static long bucketUpperBound(int index) {
+            if (index < LINEAR_LIMIT) {
+                return index;
+            }
+            int exponent = (index - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+            long mantissa = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+            return ((mantissa + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+        }
+
+        /**
+         * @param percentile percentile in range 0-100
+         * @return upper bound of bucket containing given percentile (never above max)
+         */
+        public long getPercentile(double percentile) {
+            if (m_count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * m_count));
+            long seen = 0;
+            for (int i = 0; i < m_counts.length; i++) {
+                seen += m_counts[i];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBound(i), m_max);
+                }
+            }
+            return m_max;
+        }
+
+        public long getCount() {
+            return m_count;
+        }
+
+        public long getMin() {
+            return (m_count == 0) ? 0 : m_min;
+        }
+
+        public long getMax() {
+            return m_max;
+        }
+
+        public double getMean() {
+            return (m_count == 0) ? 0 : (double) m_sum / m_count;
+        }
+
+        /**
+         * @return commands per second between start of first and end of last recorded command
+         */
+        public double getThroughput() {
+            long span = m_lastRecordTime - m_firstRecordTime;
+            return (span <= 0) ? 0 : m_count * 1000000000.0 / span;
+        }
+    }
+}
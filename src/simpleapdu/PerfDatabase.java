@@ -0,0 +1,258 @@
+package simpleapdu;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Local database of benchmark results of card models, one result per line of CSV file
+ * (timestamp;model_id;card_id;model_name;applet_version;benchmark;iterations;ms_per_op).
+ * Results of all cards and applet versions are appended to the same file, so models
+ * and versions can be compared by query.
+ *
+ * Usage: PerfDatabase database_file models
+ *        PerfDatabase database_file query [model=...] [version=...] [benchmark=...]
+ *        PerfDatabase database_file compare [benchmark_prefix]
+ */
+public class PerfDatabase {
+    static final String HEADER = "timestamp;model_id;card_id;model_name;applet_version;benchmark;iterations;ms_per_op";
+    private static final int COLUMNS = 8;
+
+    private final String m_fileName;
+
+    public static class Result {
+        public final String m_timestamp;
+        public final String m_modelId;
+        public final String m_cardId;
+        public final String m_modelName;
+        public final String m_appletVersion;
+        public final String m_benchmark;
+        public final int m_iterations;
+        public final double m_msPerOp;
+
+        public Result(String timestamp, String modelId, String cardId, String modelName, String appletVersion, String benchmark, int iterations, double msPerOp) {
+            m_timestamp = timestamp;
+            m_modelId = modelId;
+            m_cardId = cardId;
+            m_modelName = modelName;
+            m_appletVersion = appletVersion;
+            m_benchmark = benchmark;
+            m_iterations = iterations;
+            m_msPerOp = msPerOp;
+        }
+
+        public double getOpsPerSecond() {
+            return (m_msPerOp > 0) ? 1000 / m_msPerOp : 0;
+        }
+
+        String toCSV() {
+            return String.format(Locale.ROOT, "%s;%s;%s;%s;%s;%s;%d;%.4f", m_timestamp, clean(m_modelId), clean(m_cardId),
+                    clean(m_modelName), clean(m_appletVersion), clean(m_benchmark), m_iterations, m_msPerOp);
+        }
+
+        static Result fromCSV(String line) {
+            String[] fields = line.split(";", -1);
+            if (fields.length != COLUMNS) {
+                throw new IllegalArgumentException("Invalid result line: " + line);
+            }
+            return new Result(fields[0], fields[1], fields[2], fields[3], fields[4], fields[5],
+                    Integer.parseInt(fields[6]), Double.parseDouble(fields[7]));
+        }
+
+        // separator must not appear in values
+        private static String clean(String value) {
+            return value.replace(';', ',').replace('\n', ' ');
+        }
+    }
+
+    public PerfDatabase(String fileName) {
+        m_fileName = fileName;
+    }
+
+    public synchronized void append(List<Result> results) throws IOException {
+        boolean exists = new File(m_fileName).exists();
+        Writer out = new FileWriter(m_fileName, true);
+        try {
+            if (!exists) {
+                out.write(HEADER + "\n");
+            }
+            for (Result result : results) {
+                out.write(result.toCSV() + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public synchronized List<Result> load() throws IOException {
+        List<Result> results = new ArrayList<Result>();
+        if (!new File(m_fileName).exists()) {
+            return results;
+        }
+        BufferedReader in = new BufferedReader(new FileReader(m_fileName));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty() || line.equals(HEADER)) {
+                    continue;
+                }
+                results.add(Result.fromCSV(line));
+            }
+        } finally {
+            in.close();
+        }
+        return results;
+    }
+
+    /**
+     * @param model model id or part of model name (case insensitive), null for any
+     * @param version applet version, null for any
+     * @param benchmarkPrefix beginning of benchmark name (e.g., "rsa.private"), null for any
+     */
+    public List<Result> query(String model, String version, String benchmarkPrefix) throws IOException {
+        List<Result> matching = new ArrayList<Result>();
+        for (Result result : load()) {
+            if ((model != null) && !result.m_modelId.equals(model)
+                    && !result.m_modelName.toLowerCase(Locale.ROOT).contains(model.toLowerCase(Locale.ROOT))) {
+                continue;
+            }
+            if ((version != null) && !result.m_appletVersion.equals(version)) {
+                continue;
+            }
+            if ((benchmarkPrefix != null) && !result.m_benchmark.startsWith(benchmarkPrefix)) {
+                continue;
+            }
+            matching.add(result);
+        }
+        return matching;
+    }
+
+    /**
+     * Compares models and applet versions: results are grouped by benchmark, model and
+     * applet version, groups of every benchmark are ordered from the fastest median.
+     * @return CSV table benchmark;model_id;model_name;applet_version;runs;best_ms;median_ms;ops_per_sec
+     */
+    public String compare(String benchmarkPrefix) throws IOException {
+        Map<String, Map<String, List<Result>>> benchmarks = new TreeMap<String, Map<String, List<Result>>>();
+        for (Result result : query(null, null, benchmarkPrefix)) {
+            Map<String, List<Result>> groups = benchmarks.get(result.m_benchmark);
+            if (groups == null) {
+                groups = new LinkedHashMap<String, List<Result>>();
+                benchmarks.put(result.m_benchmark, groups);
+            }
+            String key = result.m_modelId + ";" + result.m_appletVersion;
+            List<Result> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<Result>();
+                groups.put(key, group);
+            }
+            group.add(result);
+        }
+
+        StringBuilder csv = new StringBuilder();
+        csv.append("benchmark;model_id;model_name;applet_version;runs;best_ms;median_ms;ops_per_sec\n");
+        for (Map.Entry<String, Map<String, List<Result>>> benchmark : benchmarks.entrySet()) {
+            List<List<Result>> groups = new ArrayList<List<Result>>(benchmark.getValue().values());
+            for (List<Result> group : groups) {
+                Collections.sort(group, (a, b) -> Double.compare(a.m_msPerOp, b.m_msPerOp));
+            }
+            Collections.sort(groups, (a, b) -> Double.compare(getMedian(a), getMedian(b)));
+            for (List<Result> group : groups) {
+                Result first = group.get(0);
+                double median = getMedian(group);
+                csv.append(String.format(Locale.ROOT, "%s;%s;%s;%s;%d;%.3f;%.3f;%.2f\n", benchmark.getKey(), first.m_modelId,
+                        first.m_modelName, first.m_appletVersion, group.size(), first.m_msPerOp, median, (median > 0) ? 1000 / median : 0));
+            }
+        }
+        return csv.toString();
+    }
+
+    // group must be sorted by time
+    private static double getMedian(List<Result> group) {
+        int middle = group.size() / 2;
+        if (group.size() % 2 == 1) {
+            return group.get(middle).m_msPerOp;
+        }
+        return (group.get(middle - 1).m_msPerOp + group.get(middle).m_msPerOp) / 2;
+    }
+
+    /**
+     * @return CSV table model_id;model_name;cards;applet_versions;results
+     */
+    public String listModels() throws IOException {
+        Map<String, List<Result>> models = new TreeMap<String, List<Result>>();
+        for (Result result : load()) {
+            List<Result> model = models.get(result.m_modelId);
+            if (model == null) {
+                model = new ArrayList<Result>();
+                models.put(result.m_modelId, model);
+            }
+            model.add(result);
+        }
+        StringBuilder csv = new StringBuilder();
+        csv.append("model_id;model_name;cards;applet_versions;results\n");
+        for (Map.Entry<String, List<Result>> model : models.entrySet()) {
+            List<String> cards = new ArrayList<String>();
+            List<String> versions = new ArrayList<String>();
+            for (Result result : model.getValue()) {
+                if (!cards.contains(result.m_cardId)) {
+                    cards.add(result.m_cardId);
+                }
+                if (!versions.contains(result.m_appletVersion)) {
+                    versions.add(result.m_appletVersion);
+                }
+            }
+            csv.append(model.getKey()).append(";").append(model.getValue().get(0).m_modelName).append(";").append(cards.size())
+                    .append(";").append(String.join(" ", versions)).append(";").append(model.getValue().size()).append("\n");
+        }
+        return csv.toString();
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: PerfDatabase database_file models");
+            System.out.println("       PerfDatabase database_file query [model=...] [version=...] [benchmark=...]");
+            System.out.println("       PerfDatabase database_file compare [benchmark_prefix]");
+            return;
+        }
+        try {
+            PerfDatabase database = new PerfDatabase(args[0]);
+            if (args[1].equals("models")) {
+                System.out.print(database.listModels());
+            } else if (args[1].equals("compare")) {
+                System.out.print(database.compare((args.length > 2) ? args[2] : null));
+            } else if (args[1].equals("query")) {
+                String model = null;
+                String version = null;
+                String benchmark = null;
+                for (int i = 2; i < args.length; i++) {
+                    if (args[i].startsWith("model=")) {
+                        model = args[i].substring(6);
+                    } else if (args[i].startsWith("version=")) {
+                        version = args[i].substring(8);
+                    } else if (args[i].startsWith("benchmark=")) {
+                        benchmark = args[i].substring(10);
+                    }
+                }
+                System.out.println(HEADER);
+                for (Result result : database.query(model, version, benchmark)) {
+                    System.out.println(result.toCSV());
+                }
+            } else {
+                System.out.println("Unknown command " + args[1]);
+            }
+        } catch (Exception ex) {
+            System.out.println("Exception : " + ex);
+        }
+    }
+}
@@ -1,9 +1,16 @@
 package simpleapdu;
 
+import applets.RSAOAEP;
 import applets.TestSWAlgsApplet;
 import javacard.framework.ISO7816;
 import javacard.security.CryptoException;
 import javacard.security.KeyPair;
+import java.math.BigInteger;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
 /**
@@ -16,17 +23,113 @@ public class SimpleAPDU {
     private final static byte SELECT_TESTAPPLET[] = {(byte) 0x00, (byte) 0xa4, (byte) 0x04, (byte) 0x00, (byte) 0x0b, 
         (byte) 0x4C, (byte) 0x61, (byte) 0x62, (byte) 0x61, (byte) 0x6B,
         (byte) 0x41, (byte) 0x70, (byte) 0x70, (byte) 0x6C, (byte) 0x65, (byte) 0x74};
-    private static byte APPLET_AID[] = {(byte) 0x4C, (byte) 0x61, (byte) 0x62, (byte) 0x61, (byte) 0x6B,
+    static byte APPLET_AID[] = {(byte) 0x4C, (byte) 0x61, (byte) 0x62, (byte) 0x61, (byte) 0x6B,
         (byte) 0x41, (byte) 0x70, (byte) 0x70, (byte) 0x6C, (byte) 0x65, (byte) 0x74};
 
+    private final static byte CLA_TESTAPPLET = (byte) 0xB0;
+    private final static byte INS_TEST_RSAOAEP_BATCH = (byte) 0x5E;
+    private final static byte INS_IMPORT_KEY = (byte) 0x62;
+    private final static byte KEY_CHUNK_MORE = (byte) 0x80;
+    private final static int KEY_CHUNK_LENGTH = 128;
+
     private static byte TEST_RSAOEAP[] = {(byte) 0xB0, (byte) 0x5A, (byte) 0x00, (byte) 0x00, (byte) 0x00};
     private static byte TEST_RSAOEAP_PERF_ENCODE[] = {(byte) 0xB0, (byte) 0x5B, (byte) 0x01, (byte) 0x00, (byte) 0x02, (byte) 0x00, (byte) 0x10};
-    private static byte TEST_RSAOEAP_PERF_DECODE[] = {(byte) 0xB0, (byte) 0x5C, (byte) 0x02, (byte) 0x00, (byte) 0x02, (byte) 0x00, (byte) 0xff};
+    private static byte TEST_RSAOEAP_STATS[] = {(byte) 0xB0, (byte) 0x61, (byte) 0x00, (byte) 0x00, (byte) 0x00};
+    private static byte TEST_RSAOEAP_POOL_REFILL[] = {(byte) 0xB0, (byte) 0x5D, (byte) 0x00, (byte) 0x00, (byte) 0x00};
+    private static byte TEST_RSAOEAP_PERF_DECODE[] = {(byte) 0xB0, (byte) 0x5B, (byte) 0x02, (byte) 0x00, (byte) 0x02, (byte) 0x00, (byte) 0xff};
+    // data length 0x10, 10 measured iterations, 1 warm-up iteration
+    private static byte TEST_RSAOEAP_PERF_ENCODE_LOOP[] = {(byte) 0xB0, (byte) 0x5B, (byte) 0x01, (byte) 0x00, (byte) 0x06, (byte) 0x00, (byte) 0x10, (byte) 0x00, (byte) 0x0a, (byte) 0x00, (byte) 0x01};
+    private static byte TEST_RSAOEAP_PERF_DECODE_LOOP[] = {(byte) 0xB0, (byte) 0x5B, (byte) 0x02, (byte) 0x00, (byte) 0x06, (byte) 0x00, (byte) 0x10, (byte) 0x00, (byte) 0x0a, (byte) 0x00, (byte) 0x01};
     
     static short getShort(byte[] array, int offset) {
         return (short) (((array[offset] & 0xFF) << 8) | (array[offset + 1] & 0xFF));        
     }
     
+    /**
+     * Sends performance command with iteration loop and prints average time of one operation,
+     * (t(loop) - t(same command with warm-up but no measured iterations)) / iterations, so 
+     * transport, command overhead and warm-up are excluded.
+     */
+    static void printAverageTime(CardMngr cardManager, String operation, byte[] loopCommand) throws Exception {
+        // data: [data length (2B)][iterations (2B)][warm-up iterations (2B)]
+        byte[] emptyCommand = loopCommand.clone();
+        Arrays.fill(emptyCommand, CardMngr.OFFSET_DATA + 2, CardMngr.OFFSET_DATA + 4, (byte) 0);
+        ResponseAPDU resp = cardManager.sendAPDU(emptyCommand);
+        long overhead = cardManager.getLastTransmitTime();
+        if (resp.getSW() == 0x9000) {
+            resp = cardManager.sendAPDU(loopCommand);
+        }
+        if (resp.getSW() != 0x9000) {
+            System.out.println("Performance test of " + operation + " failed");
+            return;
+        }
+        long elapsed = cardManager.getLastTransmitTime() - overhead;
+        int iterations = getShort(resp.getData(), 0) & 0xffff;
+        System.out.println("Average " + operation + " time (ms): " + (elapsed / 1000000.0) / iterations);
+    }
+
+    static void printStatistics(ResponseAPDU resp) {
+        if (resp.getSW() != 0x9000) {
+            System.out.println("Failed to read OAEP statistics");
+            return;
+        }
+        byte[] data = resp.getData();
+        String[] groups = {"encode", "decode", "precompute"};
+        short[] offsets = {RSAOAEP.STATS_ENCODE, RSAOAEP.STATS_DECODE, RSAOAEP.STATS_PRECOMPUTE};
+        for (int i = 0; i < groups.length; i++) {
+            int offset = offsets[i];
+            System.out.println(groups[i] + ": RSA operations " + getInt(data, offset + RSAOAEP.STAT_RSA_OPS) 
+                    + ", hash blocks " + getInt(data, offset + RSAOAEP.STAT_HASH_BLOCKS)
+                    + ", hashed bytes " + getInt(data, offset + RSAOAEP.STAT_HASH_BYTES) 
+                    + ", copied bytes " + getInt(data, offset + RSAOAEP.STAT_COPY_BYTES)
+                    + " (persistent " + getInt(data, offset + RSAOAEP.STAT_PERSISTENT_BYTES) + ")"
+                    + ", loop iterations " + getInt(data, offset + RSAOAEP.STAT_LOOP_ITERATIONS));
+        }
+    }
+
+    /**
+     * Builds commands importing key pair into key slot of TestSWAlgsApplet (INS_IMPORT_KEY), 
+     * components are sent in order modulus, public exponent, P, Q, DP, DQ, PQ.
+     */
+    static List<byte[]> buildKeyImportAPDUs(byte slot, RSAPrivateCrtKey key) {
+        int keyBytes = (key.getModulus().bitLength() + 7) / 8;
+        BigInteger[] components = {key.getModulus(), key.getPublicExponent(), key.getPrimeP(), key.getPrimeQ(),
+            key.getPrimeExponentP(), key.getPrimeExponentQ(), key.getCrtCoefficient()};
+        int[] lengths = {keyBytes, 0, keyBytes / 2, keyBytes / 2, keyBytes / 2, keyBytes / 2, keyBytes / 2};
+
+        List<byte[]> apdus = new ArrayList<byte[]>();
+        for (int i = 0; i < components.length; i++) {
+            byte[] value = toUnsigned(components[i], lengths[i]);
+            for (int offset = 0; offset < value.length; offset += KEY_CHUNK_LENGTH) {
+                int len = Math.min(KEY_CHUNK_LENGTH, value.length - offset);
+                byte p1 = (byte) (i + 1);
+                if (offset + len < value.length) {
+                    p1 |= KEY_CHUNK_MORE;
+                }
+                apdus.add(new CommandAPDU(CLA_TESTAPPLET, INS_IMPORT_KEY, p1, slot, value, offset, len).getBytes());
+            }
+        }
+        return apdus;
+    }
+
+    // big endian value without sign byte, left padded with zeroes to length (if not 0)
+    static byte[] toUnsigned(BigInteger value, int length) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length > 1 && bytes[0] == 0) {
+            bytes = Arrays.copyOfRange(bytes, 1, bytes.length);
+        }
+        if (bytes.length >= length) {
+            return bytes;
+        }
+        byte[] padded = new byte[length];
+        System.arraycopy(bytes, 0, padded, length - bytes.length, bytes.length);
+        return padded;
+    }
+
+    static long getInt(byte[] array, int offset) {
+        return ((long) (getShort(array, offset) & 0xffff) << 16) | (getShort(array, offset + 2) & 0xffff);
+    }
+
     public static void main(String[] args) {
         try {
             //
@@ -45,6 +148,11 @@ public class SimpleAPDU {
             // REAL CARDS
             //
             if (cardManager.ConnectToCard()) {
+                // optional arguments: [trace_file (- for none)] [latency_json_file]
+                if ((args.length > 0) && !args[0].equals("-")) {
+                    // record session for later replay by TraceReplay
+                    cardManager.startTraceRecording(args[0]);
+                }
                 // Select our application on card
                 cardManager.sendAPDU(SELECT_TESTAPPLET);
 
@@ -52,6 +160,8 @@ public class SimpleAPDU {
                 ResponseAPDU resp = cardManager.sendAPDU(TEST_RSAOEAP);
                 
                 // Performance tests
+                // precompute seeds and masks outside of measured operations
+                resp = cardManager.sendAPDU(TEST_RSAOEAP_POOL_REFILL);
                 for (int i = 0; i < 5; i++) {
                     resp = cardManager.sendAPDU(TEST_RSAOEAP_PERF_ENCODE);
                 }
@@ -59,6 +169,29 @@ public class SimpleAPDU {
                     resp = cardManager.sendAPDU(TEST_RSAOEAP_PERF_DECODE);
                 }
 
+                // Many operations in one round trip, average excludes most of transport overhead
+                cardManager.sendAPDU(TEST_RSAOEAP_STATS); // reset counters
+                printAverageTime(cardManager, "encode", TEST_RSAOEAP_PERF_ENCODE_LOOP);
+                printAverageTime(cardManager, "decode", TEST_RSAOEAP_PERF_DECODE_LOOP);
+                resp = cardManager.sendAPDU(TEST_RSAOEAP_STATS);
+                printStatistics(resp);
+
+                // Batch of several operations in one extended length APDU (default install holds 2 results)
+                List<byte[]> payloads = new ArrayList<byte[]>();
+                for (int i = 0; i < 2; i++) {
+                    payloads.add(new byte[16]);
+                }
+                List<byte[]> wrapped = cardManager.sendBatchAPDU(CLA_TESTAPPLET, INS_TEST_RSAOAEP_BATCH, (byte) 0x01, (byte) 0x00, payloads);
+                if (wrapped != null) {
+                    cardManager.sendBatchAPDU(CLA_TESTAPPLET, INS_TEST_RSAOAEP_BATCH, (byte) 0x02, (byte) 0x00, wrapped);
+                }
+
+                System.out.print(cardManager.getLatencyStats().toCSV());
+                if (args.length > 1) {
+                    cardManager.getLatencyStats().writeJSON(args[1]);
+                }
+
+                cardManager.stopTraceRecording();
                 cardManager.DisconnectFromCard();
             } else {
                 System.out.println("Failed to connect to card");
@@ -0,0 +1,73 @@
+package simpleapdu;
+
+import javacard.framework.Applet;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Pool of independent in-process simulated cards. Each instance has own jcardsim
+ * runtime with applet installed (and its keys generated) when the pool is created,
+ * instances can be checked out concurrently and used from different threads.
+ */
+public class SimulatorPool {
+    private final BlockingQueue<CardMngr> m_available = new LinkedBlockingQueue<CardMngr>();
+    private final int m_size;
+
+    /**
+     * Creates and prepares all instances, in parallel on all available processors.
+     * @param size number of simulated cards
+     * @param prepareAPDUs commands sent to every instance after applet install (e.g., key
+     * generation or pool refill), each must return 9000; may be null
+     */
+    public SimulatorPool(int size, byte[] appletAID, byte[] installData, Class<? extends Applet> appletClass, List<byte[]> prepareAPDUs) throws Exception {
+        m_size = size;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(size, Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<CardMngr>> instances = new ArrayList<Future<CardMngr>>();
+            for (int i = 0; i < size; i++) {
+                instances.add(executor.submit(() -> {
+                    CardMngr manager = new CardMngr();
+                    manager.setQuiet(true);
+                    if (!manager.prepareLocalSimulatorApplet(appletAID, installData, appletClass)) {
+                        throw new IllegalStateException("Applet not selected in simulator");
+                    }
+                    if (prepareAPDUs != null) {
+                        for (byte[] apdu : prepareAPDUs) {
+                            ResponseAPDU resp = new ResponseAPDU(manager.sendAPDUSimulator(apdu));
+                            if (resp.getSW() != 0x9000) {
+                                throw new IllegalStateException("Preparation command failed with " + Integer.toHexString(resp.getSW()));
+                            }
+                        }
+                    }
+                    return manager;
+                }));
+            }
+            for (Future<CardMngr> instance : instances) {
+                m_available.add(instance.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public int getSize() {
+        return m_size;
+    }
+
+    /**
+     * Waits for free instance. Instance must be returned by checkin() after use.
+     */
+    public CardMngr checkout() throws InterruptedException {
+        return m_available.take();
+    }
+
+    public void checkin(CardMngr manager) {
+        m_available.add(manager);
+    }
+}
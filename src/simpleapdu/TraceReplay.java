@@ -0,0 +1,105 @@
+package simpleapdu;
+
+import applets.TestSWAlgsApplet;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays APDU trace recorded by CardMngr.startTraceRecording() against card or
+ * simulator and reports mismatching responses, throughput and latency per INS.
+ * Responses are compared by status word and length (OAEP output is randomized),
+ * with "exact" also by content.
+ *
+ * Usage: TraceReplay trace_file [sim|card] [paced] [exact]
+ */
+public class TraceReplay {
+    private final CardMngr m_cardManager;
+    private final boolean m_simulator;
+
+    public TraceReplay(CardMngr cardManager, boolean simulator) {
+        m_cardManager = cardManager;
+        m_simulator = simulator;
+    }
+
+    /**
+     * @param paced if true, commands are sent at recorded offsets from start, otherwise at full speed
+     * @param exact if true, response data must match recorded response
+     * @return number of commands with mismatching response
+     */
+    public int replay(List<ApduTrace.Record> records, boolean paced, boolean exact) throws Exception {
+        ByteBuffer command = m_cardManager.getCommandBuffer();
+        ByteBuffer response = ByteBuffer.allocate(CardMngr.MAX_RESPONSE_LENGTH + CardMngr.RESPONSE_HEADROOM);
+        int mismatches = 0;
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < records.size(); i++) {
+            ApduTrace.Record record = records.get(i);
+            if (paced) {
+                long wait;
+                while ((wait = startTime + record.m_start - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            command.clear();
+            command.put(record.m_command).flip();
+            response.clear();
+            int sw = m_simulator ? m_cardManager.transmitSimulator(command, response) : m_cardManager.transmit(command, response);
+
+            boolean match = (sw == record.getSW()) && (response.position() == record.m_response.length);
+            for (int j = 0; match && exact && j < record.m_response.length; j++) {
+                match = (response.get(j) == record.m_response[j]);
+            }
+            if (!match) {
+                mismatches++;
+                System.out.println("Response mismatch of command " + i + ": expected SW " + Integer.toHexString(record.getSW())
+                        + " (" + record.m_response.length + "B), got " + Integer.toHexString(sw) + " (" + response.position() + "B)");
+            }
+        }
+        long elapsed = System.nanoTime() - startTime;
+
+        System.out.println("Replayed " + records.size() + " commands in " + elapsed / 1000000.0 + " ms ("
+                + records.size() * 1000000000.0 / elapsed + " commands/s), " + mismatches + " mismatches");
+        return mismatches;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.out.println("Usage: TraceReplay trace_file [sim|card] [paced] [exact]");
+            return;
+        }
+        boolean simulator = true;
+        boolean paced = false;
+        boolean exact = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("card")) {
+                simulator = false;
+            } else if (args[i].equals("paced")) {
+                paced = true;
+            } else if (args[i].equals("exact")) {
+                exact = true;
+            }
+        }
+
+        try {
+            List<ApduTrace.Record> records = ApduTrace.read(args[0]);
+            CardMngr cardManager = new CardMngr();
+            if (simulator) {
+                cardManager.prepareLocalSimulatorApplet(SimpleAPDU.APPLET_AID, new byte[15], TestSWAlgsApplet.class);
+            } else if (!cardManager.ConnectToCard()) {
+                System.out.println("Failed to connect to card");
+                return;
+            }
+            cardManager.setQuiet(true);
+
+            new TraceReplay(cardManager, simulator).replay(records, paced, exact);
+            System.out.print(cardManager.getLatencyStats().toCSV());
+
+            if (!simulator) {
+                cardManager.DisconnectFromCard();
+            }
+        } catch (Exception ex) {
+            System.out.println("Exception : " + ex);
+        }
+    }
+}